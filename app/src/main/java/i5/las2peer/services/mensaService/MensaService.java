@@ -10,8 +10,31 @@ import i5.las2peer.api.persistency.EnvelopeOperationFailedException;
 import i5.las2peer.api.security.UserAgent;
 import i5.las2peer.restMapper.RESTService;
 import i5.las2peer.restMapper.annotations.ServicePath;
+import i5.las2peer.services.mensaService.cache.ExpiringCache;
+import i5.las2peer.services.mensaService.cache.InFlightRequests;
+import i5.las2peer.services.mensaService.database.Dish;
+import i5.las2peer.services.mensaService.database.DishRepository;
+import i5.las2peer.services.mensaService.database.Mensa;
+import i5.las2peer.services.mensaService.database.MensaIndex;
+import i5.las2peer.services.mensaService.database.MensaMatcher;
+import i5.las2peer.services.mensaService.database.MensaRepository;
+import i5.las2peer.services.mensaService.database.RatingStats;
+import i5.las2peer.services.mensaService.database.Review;
+import i5.las2peer.services.mensaService.database.ReviewRepository;
+import i5.las2peer.services.mensaService.database.ReviewWriter;
 import i5.las2peer.services.mensaService.database.SQLDatabase;
 import i5.las2peer.services.mensaService.database.SQLDatabaseType;
+import i5.las2peer.services.mensaService.openmensa.CanteenSnapshot;
+import i5.las2peer.services.mensaService.openmensa.CanteenSync;
+import i5.las2peer.services.mensaService.openmensa.CanteenSyncScheduler;
+import i5.las2peer.services.mensaService.openmensa.CircuitBreaker;
+import i5.las2peer.services.mensaService.openmensa.DayMenu;
+import i5.las2peer.services.mensaService.openmensa.MensaPopularity;
+import i5.las2peer.services.mensaService.openmensa.MenuKey;
+import i5.las2peer.services.mensaService.openmensa.MenuPrefetcher;
+import i5.las2peer.services.mensaService.openmensa.MenuRefresher;
+import i5.las2peer.services.mensaService.openmensa.OpenMensaClient;
+import i5.las2peer.services.mensaService.openmensa.OpenMensaUnavailableException;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -20,28 +43,41 @@ import io.swagger.annotations.Contact;
 import io.swagger.annotations.Info;
 import io.swagger.annotations.License;
 import io.swagger.annotations.SwaggerDefinition;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -52,10 +88,12 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
 import net.minidev.json.parser.JSONParser;
@@ -91,13 +129,31 @@ public class MensaService extends RESTService {
 
   private static final long SIX_HOURS_IN_MS = 6 * 60 * 60 * 1000L;
   private static final long ONE_DAY_IN_MS = 24 * 60 * 60 * 1000L;
-
-  private static final String OPEN_MENSA_API_ENDPOINT =
-    "https://openmensa.org/api/v2";
-
-  private static HashMap<Integer, Date> lastDishUpdate = new HashMap<>();
-  private static Date lastMensasUpdate;
-  private static HashMap<String, Object> ContextInfo = new HashMap<String, Object>();
+  private static final int MAX_DISH_PAGE = 1000; // dishes per page of /dishes
+  private static final String STALE_MENU_NOTE =
+    "⚠️ The menu could not be updated, it might be outdated\n";
+
+  private static final ExpiringCache<MenuKey, Date> lastDishUpdate = new ExpiringCache<>(
+    SIX_HOURS_IN_MS,
+    2000
+  ); // menus for which the dishes have been saved in the last six hours
+  private static final ThreadPoolExecutor dishWriter = new ThreadPoolExecutor(
+    1,
+    1,
+    0,
+    TimeUnit.MILLISECONDS,
+    new LinkedBlockingQueue<>(500),
+    r -> {
+      Thread t = new Thread(r, "mensa-dish-writer");
+      t.setDaemon(true);
+      return t;
+    }
+  ); // saves dishes off the request thread, one menu at a time
+  private static final AtomicLong dishesSaved = new AtomicLong();
+  private static final AtomicLong dishBatchesFailed = new AtomicLong();
+  private static CanteenSyncScheduler mensaSync; // the only writer of the mensas table
+  private static volatile MensaIndex mensaIndex; // replaced as a whole after each change of the mensas table
+  private static ExpiringCache<String, JSONObject> ContextInfo; // conversation context of each chat user, created in initContextStore
   private final int maxEntries = 20;
 
   private String databaseName="LAS2PEERMON";
@@ -107,7 +163,70 @@ public class MensaService extends RESTService {
   private int databasePort=3306;
   private String databaseUser="root";
   private String databasePassword="root";
+  private String databaseReplicaHost = ""; // empty if all queries go to databaseHost
+  private int databaseReplicaPort = 3306;
+  private String databaseSchemaFile = "mysql-init-files/initDB.sql"; // applied to an embedded database
   private SQLDatabase database; // The database instance to write to.
+  private MensaRepository mensaRepository;
+  private DishRepository dishRepository;
+  private ReviewRepository reviewRepository;
+
+  private int contextIdleMinutes = 60;
+  private int contextMaxEntries = 10000;
+
+  private int menuCacheTtlSeconds = 900;
+  private int menuCacheMaxEntries = 500;
+  private static ExpiringCache<MenuKey, DayMenu> menuCache; // shared by all requests, menus change rarely during the day
+  private static final InFlightRequests<MenuKey, DayMenu> menuFetches = new InFlightRequests<>();
+  private static final InFlightRequests<MenuKey, Boolean> openStatusFetches = new InFlightRequests<>();
+  private static ExpiringCache<MenuKey, DayMenu> staleMenus; // last known menus, served while OpenMensa is not available
+  private static MenuRefresher menuRefresher; // serves and refreshes the stale menus
+  private static ExpiringCache<MenuKey, Boolean> openStatusCache; // whether a mensa is open, shared by all requests
+  private static final ExecutorService openStatusChecks = Executors.newFixedThreadPool(
+    8,
+    r -> {
+      Thread t = new Thread(r, "mensa-open-status");
+      t.setDaemon(true);
+      return t;
+    }
+  );
+  private int openStatusDeadlineMillis = 2000; // maximum time to wait for the open status of a list of mensas
+  private String openMensaApiEndpoint = "https://openmensa.org/api/v2";
+  private int openMensaConnectTimeoutSeconds = 10;
+  private int openMensaReadTimeoutSeconds = 30;
+  private int openMensaFailureThreshold = 5; // failed requests in a row which open the circuit
+  private int openMensaOpenSeconds = 30; // time in seconds until a request is let through again
+  private static OpenMensaClient openMensa; // shared by all requests, so that connections are reused
+
+  private int mensaSyncIntervalDays = 30; // canteens do not change often, see https://doc.openmensa.org/api/v2/canteens/
+  private int mensaSyncRetryMinutes = 60;
+  private String mensaSnapshotFile = "etc/mensas-snapshot.json.gz"; // empty to disable the snapshot
+  private int mensaSyncConcurrency = 4;
+  private int mensaSyncBatchSize = 100;
+
+  private int prefetchIntervalMinutes = 10; // 0 disables prefetching
+  private int prefetchDays = 2;
+  private int prefetchTopMensas = 20;
+  private int prefetchConcurrency = 4;
+  private int prefetchFromHour = 6;
+  private int prefetchUntilHour = 20;
+  private static final MensaPopularity popularity = new MensaPopularity(); // menu requests per mensa
+  private static final MensaMatcher mensaMatcher = new MensaMatcher(
+    popularity::count
+  );
+  private static final AtomicLong mensasSelected = new AtomicLong(); // found without asking the user
+  private static final AtomicLong mensaSelectionsAsked = new AtomicLong();
+  private static MenuPrefetcher menuPrefetcher;
+  private static ReviewWriter reviewWriter; // null unless reviews are written behind
+  private static final ExpiringCache<Integer, String> dishNames = new ExpiringCache<>(
+    ONE_DAY_IN_MS,
+    5000
+  ); // names of dishes which have been reviewed
+
+  private boolean reviewWriteBehind = false;
+  private int reviewQueueCapacity = 1000;
+  private int reviewBatchSize = 50;
+  private String reviewOverflowFile = "etc/reviews-overflow.jsonl";
 
   private static final String ENVELOPE_PREFIX = "mensa-";
   // private static final String RATINGS_ENVELOPE_PREFIX =
@@ -118,6 +237,16 @@ public class MensaService extends RESTService {
   public MensaService() {
     super();
     setFieldValues();
+    initMenuCache(menuCacheTtlSeconds, menuCacheMaxEntries);
+    initContextStore(contextIdleMinutes, contextMaxEntries);
+    initOpenMensaClient(
+      openMensaApiEndpoint,
+      openMensaConnectTimeoutSeconds,
+      openMensaReadTimeoutSeconds,
+      openMensaFailureThreshold,
+      openMensaOpenSeconds,
+      2 * mensaSyncIntervalDays
+    );
     this.databaseType = SQLDatabaseType.getSQLDatabaseType(databaseTypeInt);
 
     this.database =
@@ -130,18 +259,259 @@ public class MensaService extends RESTService {
         this.databasePort
       );
 
+    if (
+      databaseReplicaHost != null &&
+      !databaseReplicaHost.isEmpty() &&
+      !databaseType.isEmbedded()
+    ) {
+      database.setReadReplica(databaseReplicaHost, databaseReplicaPort);
+    }
+    if (databaseType.isEmbedded()) {
+      try {
+        database.applySchema(
+          Files.readString(Paths.get(databaseSchemaFile))
+        );
+      } catch (IOException | SQLException e) {
+        e.printStackTrace();
+        System.out.println("Failed to create the database schema: " + e.getMessage());
+      }
+    }
+
+    migrateDatabase();
+
+    this.mensaRepository = new MensaRepository(database);
+    this.dishRepository = new DishRepository(database);
+    this.reviewRepository = new ReviewRepository(database);
+
+    startMensaSync();
+    startMenuRefresher();
+    startMenuPrefetcher();
+    startReviewWriter();
+  }
+
+  /**
+   * Creates the refresher for stale menus. Only the first instance of the service creates it
+   */
+  private void startMenuRefresher() {
+    synchronized (MensaService.class) {
+      if (menuRefresher != null) {
+        return;
+      }
+      SQLDatabase db = this.database;
+      menuRefresher =
+        new MenuRefresher(
+          openMensa.getCircuitBreaker(),
+          staleMenus,
+          key -> menuFetches.execute(key, () -> fetchMenu(key, db))
+        );
+    }
+  }
+
+  /**
+   * Applies the migrations next to databaseSchemaFile which an existing database is missing,
+   * since initDB.sql is only run for a new database
+   * @throws IllegalStateException a migration is missing or failed, the service cannot store ratings without it
+   */
+  private void migrateDatabase() {
+    boolean ratingStats;
     try {
-    
-      Connection con = database.getDataSource().getConnection();
-      con.close();
-      fetchMensas();
+      ratingStats = database.hasTable("dish_rating_stats");
     } catch (SQLException e) {
-      // Context
-      //   .get()
-      // .monitorEvent(MonitoringEvent.SERVICE_CUSTOM_ERROR_4, e.getMessage()); //this
-      // will throw an IllegalStateException because we are not in a service context
-      e.printStackTrace();
       System.out.println("Failed to connect to Database: " + e.getMessage());
+      return;
+    }
+    if (ratingStats) {
+      return;
+    }
+    java.nio.file.Path migration = Paths
+      .get(databaseSchemaFile)
+      .resolveSibling("migrations/001-dish-rating-stats.sql");
+    try {
+      database.applySchema(Files.readString(migration));
+      System.out.println("Database migrated with " + migration);
+    } catch (IOException | SQLException e) {
+      throw new IllegalStateException(
+        "The table dish_rating_stats is missing and " +
+        migration +
+        " could not be applied, run it manually: " +
+        e.getMessage(),
+        e
+      );
+    }
+  }
+
+  /**
+   * Starts synchronizing the canteens with the OpenMensa API in the background. Only the first instance of the service starts the synchronization.
+   * If the mensas table is empty, it is filled from the snapshot first. The first synchronization runs right away,
+   * unless the last synchronization recorded with the snapshot is younger than mensaSyncIntervalDays
+   */
+  private void startMensaSync() {
+    synchronized (MensaService.class) {
+      if (mensaSync != null) {
+        return;
+      }
+      SQLDatabase db = this.database;
+      long interval = mensaSyncIntervalDays * ONE_DAY_IN_MS;
+      long initialDelay = 0;
+      CanteenSnapshot snapshot = null;
+      if (mensaSnapshotFile != null && !mensaSnapshotFile.isEmpty()) {
+        snapshot = new CanteenSnapshot(Paths.get(mensaSnapshotFile), database);
+        try {
+          int loaded = snapshot.importIfEmpty(mensaSyncBatchSize);
+          if (loaded > 0) {
+            System.out.println(loaded + " mensas loaded from snapshot");
+          }
+          long age = snapshot.syncAgeMillis();
+          if (age >= 0 && age < interval) {
+            initialDelay = interval - age;
+          }
+        } catch (IOException | SQLException e) {
+          System.out.println("Could not load mensa snapshot: " + e.getMessage());
+        }
+      }
+      loadMensaIndex(this.database);
+      mensaSync =
+        new CanteenSyncScheduler(
+          new CanteenSync(
+            openMensa,
+            this.database,
+            mensaSyncConcurrency,
+            mensaSyncBatchSize
+          ),
+          snapshot,
+          interval,
+          mensaSyncRetryMinutes * 60 * 1000L,
+          () -> loadMensaIndex(db)
+        );
+      mensaSync.start(initialDelay);
+    }
+  }
+
+  /**
+   * Builds the search index from the mensas table and replaces the current index.
+   * Lookups keep using the previous index until the new one is complete
+   * @param db database containing the mensas table
+   */
+  private static void loadMensaIndex(SQLDatabase db) {
+    try {
+      long start = System.currentTimeMillis();
+      MensaIndex index = MensaIndex.build(new MensaRepository(db).findAll());
+      mensaIndex = index;
+      System.out.println(
+        index.size() +
+        " mensas indexed in " +
+        (System.currentTimeMillis() - start) +
+        "ms"
+      );
+    } catch (SQLException e) {
+      System.out.println("Could not index mensas: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Starts writing reviews in the background if reviewWriteBehind is set.
+   * Only the first instance of the service starts the writer. When the JVM shuts down,
+   * the writer is stopped, so that reviews which are still queued are saved to the overflow file
+   */
+  private void startReviewWriter() {
+    synchronized (MensaService.class) {
+      if (reviewWriter != null || !reviewWriteBehind) {
+        return;
+      }
+      reviewWriter =
+        new ReviewWriter(
+          new ReviewRepository(this.database),
+          reviewQueueCapacity,
+          reviewBatchSize,
+          Paths.get(reviewOverflowFile)
+        );
+      reviewWriter.start();
+      Runtime
+        .getRuntime()
+        .addShutdownHook(new Thread(reviewWriter::stop, "mensa-review-writer-stop"));
+    }
+  }
+
+  /**
+   * Starts warming the menu cache for the most requested mensas in the background.
+   * Only the first instance of the service starts the prefetcher
+   */
+  private void startMenuPrefetcher() {
+    synchronized (MensaService.class) {
+      if (menuPrefetcher != null || prefetchIntervalMinutes <= 0) {
+        return;
+      }
+      SQLDatabase db = this.database;
+      menuPrefetcher =
+        new MenuPrefetcher(
+          popularity,
+          menuFetches,
+          key -> fetchMenu(key, db),
+          menuCache::remainingMillis,
+          prefetchDays,
+          prefetchTopMensas,
+          prefetchConcurrency,
+          prefetchFromHour,
+          prefetchUntilHour
+        );
+      menuPrefetcher.start(prefetchIntervalMinutes);
+    }
+  }
+
+  /**
+   * Creates the menu cache once per service class. Subsequent calls do nothing
+   * @param ttlSeconds time in seconds a menu is served from the cache
+   * @param maxEntries maximum number of menus held in the cache
+   */
+  private static synchronized void initMenuCache(int ttlSeconds, int maxEntries) {
+    if (menuCache == null) {
+      menuCache = new ExpiringCache<>(ttlSeconds * 1000L, maxEntries);
+      staleMenus = new ExpiringCache<>(2 * ONE_DAY_IN_MS, maxEntries);
+      openStatusCache = new ExpiringCache<>(ttlSeconds * 1000L, maxEntries);
+    }
+  }
+
+  /**
+   * Creates the store for the conversation contexts once per service class. Subsequent calls do nothing
+   * @param idleMinutes time in minutes after which the context of a user who has not written is dropped
+   * @param maxEntries maximum number of contexts, the least recently used context is dropped first
+   */
+  private static synchronized void initContextStore(
+    int idleMinutes,
+    int maxEntries
+  ) {
+    if (ContextInfo == null) {
+      ContextInfo =
+        new ExpiringCache<>(idleMinutes * 60 * 1000L, maxEntries, true);
+    }
+  }
+
+  /**
+   * Creates the client for the OpenMensa API once per service class. Subsequent calls do nothing
+   * @param endpoint base url of the api
+   * @param connectTimeoutSeconds maximum time in seconds to establish a connection
+   * @param readTimeoutSeconds maximum time in seconds to wait for a response
+   * @param failureThreshold number of failed requests in a row after which requests are stopped
+   * @param openSeconds time in seconds until a request is let through again
+   * @param pageValidityDays time in days the validators of the canteen pages are kept, longer than the synchronization interval
+   */
+  private static synchronized void initOpenMensaClient(
+    String endpoint,
+    int connectTimeoutSeconds,
+    int readTimeoutSeconds,
+    int failureThreshold,
+    int openSeconds,
+    int pageValidityDays
+  ) {
+    if (openMensa == null) {
+      openMensa =
+        new OpenMensaClient(
+          endpoint,
+          Duration.ofSeconds(connectTimeoutSeconds),
+          Duration.ofSeconds(readTimeoutSeconds),
+          new CircuitBreaker(failureThreshold, openSeconds * 1000L),
+          Duration.ofDays(Math.max(1, pageValidityDays))
+        );
     }
   }
 
@@ -300,7 +670,7 @@ public class MensaService extends RESTService {
 
       switch (intent) {
         case "quit":
-          ContextInfo.remove(email);
+          ContextInfo.invalidate(email);
           chatResponse.put("text", "Alright. 🙃");
           return Response.ok(chatResponse).build();
         case "rejection":
@@ -355,8 +725,7 @@ public class MensaService extends RESTService {
 
       context = updateContext(bodyJson, context);
 
-      ResultSet mensas = findMensas(mensaName, city);
-      JSONObject mensaObj = selectMensa(mensas, context);
+      JSONObject mensaObj = selectMensa(mensaName, city, context);
 
       mensaName = mensaObj.getAsString("name");
       city = mensaObj.getAsString("city");
@@ -376,6 +745,7 @@ public class MensaService extends RESTService {
           MonitoringEvent.SERVICE_CUSTOM_MESSAGE_1,
           monitorEvent1.toString()
         );
+      popularity.record(mensaObj.getAsNumber("id").intValue());
 
       //TODO: adjust the funftion to get menu for particular day
       String responseString = createMenuChatResponse(
@@ -444,41 +814,16 @@ public class MensaService extends RESTService {
     }
   )
   public Response getSupportedMensas(@QueryParam("city") String city) {
-    Response res = null;
-    Connection dbConnection = null;
-    PreparedStatement statement = null;
     JSONArray mensas = new JSONArray();
-    ResultSet rs;
-    String query;
-
-    if (city != null) {
-      query = "SELECT * FROM mensas WHERE city LIKE ?";
-    } else {
-      query = "SELECT * FROM mensas";
-    }
     try {
-      dbConnection = getDatabaseConnection();
-      statement = dbConnection.prepareStatement(query);
-      if (city != null) {
-        statement.setString(1, "%" + city + "%");
-      }
-
-      rs = statement.executeQuery();
-      while (rs.next()) {
-        JSONObject mensa = new JSONObject();
-        mensa.put("id", rs.getInt("id"));
-        mensa.put("name", rs.getString("name"));
-        mensa.put("city", rs.getString("city"));
-        mensa.put("address", rs.getString("address"));
-        mensas.add(mensa);
+      for (Mensa mensa : findMensas(null, city)) {
+        mensas.add(mensa.toJSON());
       }
-      res = Response.ok(mensas).build();
+      return Response.ok(mensas).build();
     } catch (SQLException e) {
       e.printStackTrace();
       return Response.status(500).build();
     }
-
-    return res;
   }
 
   /**
@@ -508,7 +853,7 @@ public class MensaService extends RESTService {
     @QueryParam("format") @DefaultValue("html") String format,
     @QueryParam("date") @DefaultValue("") String date
   ) {
-    JSONArray mensaMenu;
+    DayMenu dayMenu;
     String returnString;
     
 
@@ -520,24 +865,31 @@ public class MensaService extends RESTService {
       );
 
     try {
-      mensaMenu = getMensaMenu(id, date);
+      dayMenu = getDayMenu(id, date);
+      popularity.record(id); // only count mensas which are known to the OpenMensa API
 
       String responseContentType;
       switch (format) {
         case "html":
-          returnString = convertToHtml(mensaMenu);
+          returnString = convertToHtml(dayMenu.meals());
+          if (dayMenu.stale()) {
+            returnString = STALE_MENU_NOTE + returnString;
+          }
           responseContentType = MediaType.TEXT_HTML + ";charset=utf-8";
           break;
         default:
-          returnString = mensaMenu.toString();
+          returnString = dayMenu.meals().toString();
           responseContentType = MediaType.APPLICATION_JSON;
       }
 
-      return Response
+      Response.ResponseBuilder response = Response
         .ok()
         .type(responseContentType)
-        .entity(returnString)
-        .build();
+        .entity(returnString);
+      if (dayMenu.stale()) {
+        response.header("Warning", "110 - \"Response is Stale\"");
+      }
+      return response.build();
     } catch (IOException e) {
       if ("closed".equals(e.getMessage())) {
         return Response
@@ -562,34 +914,73 @@ public class MensaService extends RESTService {
   }
 
   /**
-   * Get a list of dishes that have been served in any mensa in the past.
+   * Get a list of dishes that have been served in any mensa in the past, ordered by id.
+   * If a limit is given, one page of dishes is returned and the Link header points to the next page.
+   * Otherwise all dishes are written to the response while they are read from the database.
+   * If reading fails after the response has started, it ends without the closing bracket.
    *
-   * @return A list of strings with dish names.
+   * @param after id of the last dish of the previous page
+   * @param limit maximum number of dishes, at most 1000
+   * @return A list of dishes with their names and categories.
    */
   @GET
   @Path("/dishes")
   @Produces(MediaType.APPLICATION_JSON)
   @Consumes(MediaType.APPLICATION_JSON)
-  public Response getDishes() {
-    JSONArray dishes = new JSONArray();
-    JSONObject dish;
-    String query = "SELECT DISTINCT name,id,category FROM dishes";
-    // String query = "SELECT dishes.name,category,mensas.id  as mensaId ,mensas.name as mensaName FROM dishes JOIN mensas on dishes.mensaId=mensas.id Group by dishes.name;";
-    //TODO use second query.
+  public Response getDishes(
+    @QueryParam("after") Integer after,
+    @QueryParam("limit") @DefaultValue("0") int limit
+  ) {
+    // TODO also return the mensas at which the dishes have been served
+    int start = after != null ? after : Integer.MIN_VALUE;
     try {
-      Connection con = getDatabaseConnection();
-      ResultSet res = con.prepareStatement(query).executeQuery();
-
-      while (res.next()) {
-        dish = new JSONObject();
-        dish.appendField("name", res.getString("name"));
-        dish.appendField("id", res.getInt("id"));
-        dish.appendField("category", res.getString("category"));
-        dishes.add(dish);
+      if (limit > 0) {
+        limit = Math.min(limit, MAX_DISH_PAGE);
+        JSONArray dishes = new JSONArray();
+        List<Dish> page = getDishRepository().findPage(start, limit);
+        for (Dish dish : page) {
+          dishes.add(dish.toJSON());
+        }
+        Response.ResponseBuilder response = Response.ok().entity(dishes);
+        if (page.size() == limit) {
+          response.header(
+            "Link",
+            "<?after=" +
+            page.get(page.size() - 1).id() +
+            "&limit=" +
+            limit +
+            ">; rel=\"next\""
+          );
+        }
+        return response.build();
       }
-      con.close();
 
-      return Response.ok().entity(dishes).build();
+      // the query and the first row are read before the status is sent, so they can still fail with 500
+      DishRepository.Cursor cursor = getDishRepository().open(start);
+      StreamingOutput stream = out -> {
+        Writer writer = new BufferedWriter(
+          new OutputStreamWriter(out, StandardCharsets.UTF_8)
+        );
+        try (cursor) {
+          writer.write('[');
+          boolean first = true;
+          for (Dish dish = cursor.next(); dish != null; dish = cursor.next()) {
+            if (!first) {
+              writer.write(',');
+            }
+            first = false;
+            dish.toJSON().writeJSONString(writer);
+          }
+        } catch (SQLException e) {
+          // the status has already been sent, so the response is cut off without the closing bracket
+          e.printStackTrace();
+          writer.flush();
+          throw new IOException("Could not read the dishes", e);
+        }
+        writer.write(']');
+        writer.flush();
+      };
+      return Response.ok(stream).build();
     } catch (Exception e) {
       e.printStackTrace();
 
@@ -604,6 +995,60 @@ public class MensaService extends RESTService {
     }
   }
 
+  /**
+   * Returns internal counters of the service, e.g. hits and misses of the menu cache.
+   *
+   * @return JSON object containing the counters
+   */
+  @GET
+  @Path("/metrics")
+  @Produces(MediaType.APPLICATION_JSON)
+  @ApiOperation(
+    value = "Get internal metrics of the service",
+    notes = "Contains the statistics of the menu cache and how many OpenMensa requests were merged"
+  )
+  public Response getMetrics() {
+    JSONObject metrics = new JSONObject();
+    metrics.put("menuCache", menuCache.getStats());
+    metrics.put("openMensa", openMensa.getStats());
+    JSONObject inFlight = new JSONObject();
+    inFlight.put("menu", menuFetches.getStats());
+    inFlight.put("openStatus", openStatusFetches.getStats());
+    metrics.put("inFlightRequests", inFlight);
+    JSONObject stale = staleMenus.getStats();
+    stale.putAll(menuRefresher.getStats());
+    metrics.put("staleMenus", stale);
+    metrics.put("openStatusCache", openStatusCache.getStats());
+    JSONObject dishes = new JSONObject();
+    dishes.put("saved", dishesSaved.get());
+    dishes.put("failedBatches", dishBatchesFailed.get());
+    dishes.put("queued", dishWriter.getQueue().size());
+    metrics.put("dishWriter", dishes);
+    metrics.put("conversations", ContextInfo.getStats());
+    if (reviewWriter != null) {
+      metrics.put("reviewWriter", reviewWriter.getStats());
+    }
+    metrics.put("databasePool", getDatabase().getPoolStats());
+    if (menuPrefetcher != null) {
+      metrics.put("prefetch", menuPrefetcher.getStats());
+    }
+    JSONObject selection = new JSONObject();
+    selection.put("selected", mensasSelected.get());
+    selection.put("asked", mensaSelectionsAsked.get());
+    metrics.put("mensaSelection", selection);
+    MensaIndex index = mensaIndex;
+    if (index != null) {
+      JSONObject indexStats = new JSONObject();
+      indexStats.put("mensas", index.size());
+      indexStats.put("builtAt", index.getBuiltAt());
+      metrics.put("mensaIndex", indexStats);
+    }
+    if (mensaSync != null) {
+      metrics.put("mensaSync", mensaSync.getStats());
+    }
+    return Response.ok().entity(metrics).build();
+  }
+
   /**
    * Retrieve all ratings for a dish.
    *
@@ -643,25 +1088,21 @@ public class MensaService extends RESTService {
     }
   }
 
-  private float getAverageRating(int dishId) {
-    float result;
+  /**
+   * Looks up the ratings of all dishes of a menu with a single query
+   * @param menu the menu
+   * @return ratings by dish id, empty if the ratings could not be read
+   */
+  private Map<Integer, RatingStats> getRatings(JSONArray menu) {
+    Set<Integer> dishIds = new HashSet<>();
+    for (Object o : menu) {
+      dishIds.add(((JSONObject) o).getAsNumber("id").intValue());
+    }
     try {
-      Connection con = getDatabaseConnection();
-      PreparedStatement s = con.prepareStatement(
-        "SELECT AVG(stars) FROM reviews  WHERE dishId=?"
-      );
-      s.setInt(1, dishId);
-      ResultSet res = s.executeQuery();
-      if (res.next()) {
-        result = res.getFloat(1);
-      } else {
-        result = -1;
-      }
-      con.close();
-      return result;
+      return getReviewRepository().ratingStats(dishIds);
     } catch (SQLException e) {
       e.printStackTrace();
-      return -2;
+      return Collections.emptyMap();
     }
   }
 
@@ -744,8 +1185,7 @@ public class MensaService extends RESTService {
             );
             mensaName = mensa.getAsString("name");
           }
-          ResultSet mensas = findMensas(mensaName, city);
-          mensa = selectMensa(mensas, context);
+          mensa = selectMensa(mensaName, city, context);
           context.put("selected_mensa", mensa); //save the mensa obj in context for later lookup on submitReview
         }
         if (dish == null) {
@@ -787,8 +1227,7 @@ public class MensaService extends RESTService {
         context.remove("selected_mensa");
         context.remove("selected_dish");
       } else if ("menu".equals(intent)) { //this is the case where the user specifies the mensa
-        ResultSet mensas = findMensas(mensaName, city);
-        mensa = selectMensa(mensas, context);
+        mensa = selectMensa(mensaName, city, context);
         context.put("selected_mensa", mensa); //save the mensa obj in context for later lookup on submitReview
         ContextInfo.put(email, context);
         throw new ChatException(
@@ -817,7 +1256,6 @@ public class MensaService extends RESTService {
       chatResponse.appendField("text", "Sorry, a problem occured 🙁");
     }
     if (email != null && context != null) ContextInfo.put(email, context); //save context
-    ContextInfo.put(email, context);
     return Response.ok().entity(chatResponse).build();
   }
 
@@ -888,7 +1326,7 @@ public class MensaService extends RESTService {
         rating.toJSONString()
       );
 
-      if (res.getStatus() == 200) {
+      if (res.getStatus() == 200 || res.getStatus() == 202) {
         chatResponse.appendField(
           "text",
           "Alright your review is saved. Thanks for providing your feedback 😊"
@@ -923,7 +1361,8 @@ public class MensaService extends RESTService {
   }
 
   /**
-   * Add a rating for a dish.
+   * Add a rating for a dish. If reviews are written behind, the rating is answered with 202 before it is stored
+   * and the response contains no id.
    *
    * @param id id of the dish.
    * @param rating rating as JSON string
@@ -942,18 +1381,14 @@ public class MensaService extends RESTService {
       response = (JSONObject) p.parse(rating);
       response.appendField("dishId", id);
 
-      Connection con = getDatabaseConnection();
-      PreparedStatement s = con.prepareStatement(
-        "SELECT (name) FROM dishes WHERE id=?"
-      );
-      s.setInt(1, id);
-      ResultSet res = s.executeQuery();
-
-      if (!res.next()) {
-        return Response.ok().entity("dish not found in db").build();
+      String dish = dishNames.get(id);
+      if (dish == null) {
+        dish = getDishRepository().findName(id);
+        if (dish == null) {
+          return Response.ok().entity("dish not found in db").build();
+        }
+        dishNames.put(id, dish);
       }
-
-      String dish = res.getString(1);
       response.appendField("dish", dish);
 
       String username = response.getAsString("author");
@@ -963,25 +1398,54 @@ public class MensaService extends RESTService {
 
       response.put("author", username);
 
-      s =
-        con.prepareStatement(
-          "INSERT INTO reviews (author,mensaId,dishId,timestamp,stars,comment) VALUES (?,?,?,?,?,?)",
-          Statement.RETURN_GENERATED_KEYS
-        );
+      Number mensaId = response.getAsNumber("mensaId");
+      Number stars = response.getAsNumber("stars");
+      if (mensaId == null || stars == null || stars.intValue() < 1 || stars.intValue() > 5) {
+        return Response
+          .status(Status.BAD_REQUEST)
+          .entity("mensaId and stars between 1 and 5 are required")
+          .build();
+      }
+      if (!mensaExists(mensaId.intValue())) { // would be dropped by the review writer
+        return Response
+          .status(Status.BAD_REQUEST)
+          .entity("mensa not found in db")
+          .build();
+      }
 
-      s.setString(1, username);
-      s.setInt(2, response.getAsNumber("mensaId").intValue());
-      s.setInt(3, id);
-      s.setTimestamp(4, new java.sql.Timestamp(System.currentTimeMillis()));
-      s.setInt(5, (Integer) response.getAsNumber("stars"));
-      s.setString(6, response.getAsString("comment"));
-      s.execute();
-      ResultSet rs = s.getGeneratedKeys();
+      if (
+        reviewWriter != null &&
+        reviewWriter.submit(
+          new ReviewWriter.PendingReview(
+            username,
+            mensaId.intValue(),
+            id,
+            stars.intValue(),
+            response.getAsString("comment"),
+            System.currentTimeMillis()
+          )
+        )
+      ) { // stored in the background, so there is no id yet
+        Context
+          .get()
+          .monitorEvent(
+            MonitoringEvent.SERVICE_CUSTOM_MESSAGE_4,
+            response.toString()
+          );
+        return Response.status(Status.ACCEPTED).entity(response).build();
+      }
+
+      int reviewId = getReviewRepository()
+        .add(
+          username,
+          mensaId.intValue(),
+          id,
+          stars.intValue(),
+          response.getAsString("comment")
+        );
 
-      if (rs.next()) {
-        response.appendField("id", rs.getInt(1));
-        s.close();
-        con.close();
+      if (reviewId >= 0) {
+        response.appendField("id", reviewId);
 
         Context
           .get()
@@ -992,9 +1456,6 @@ public class MensaService extends RESTService {
 
         return Response.ok().entity(response).build();
       } else {
-        s.close();
-        con.close();
-
         return Response
           .status(Status.INTERNAL_SERVER_ERROR)
           .entity("could not generate new review")
@@ -1027,14 +1488,7 @@ public class MensaService extends RESTService {
   @RolesAllowed("authenticated")
   public Response deleteRating(@PathParam("id") int id) {
     try {
-      Connection con = getDatabaseConnection();
-      PreparedStatement s = con.prepareStatement(
-        "DELETE FROM reviews WHERE id=?"
-      );
-      s.setInt(1, id);
-      s.executeUpdate();
-      s.close();
-      con.close();
+      getReviewRepository().delete(id);
       Context
         .get()
         .monitorEvent(
@@ -1067,19 +1521,7 @@ public class MensaService extends RESTService {
   public Response getPictures(@PathParam("id") int id) {
     // Context.get().monitorEvent(MonitoringEvent.SERVICE_CUSTOM_MESSAGE_6, dish);
     //TODO: adjust monitoring message
-    JSONArray pics = new JSONArray();
-    try {
-      Connection con = getDatabaseConnection();
-      PreparedStatement statement = con.prepareStatement(
-        "SELECT * from pictures"
-      ); //TODO maybe we should use the file service to add pictures
-      con.close();
-    } catch (Exception e) {
-      Context
-        .get()
-        .monitorEvent(MonitoringEvent.SERVICE_CUSTOM_ERROR_1, e.getMessage());
-    }
-
+    //TODO maybe we should use the file service to add pictures
     return Response.ok().entity(new JSONArray()).build();
   }
 
@@ -1170,11 +1612,14 @@ public class MensaService extends RESTService {
       "Here is the menu for mensa " + name + " on " + weekday + " : \n \n";
 
     try {
-      JSONArray mensaMenu = getMensaMenu(
+      DayMenu dayMenu = getDayMenu(
         id,
         new SimpleDateFormat("yyyy-MM-dd").format(date)
       );
-      String returnString = convertToHtml(mensaMenu);
+      String returnString = convertToHtml(dayMenu.meals());
+      if (dayMenu.stale()) {
+        MESSAGE_HEAD += STALE_MENU_NOTE;
+      }
       return MESSAGE_HEAD + returnString;
     } catch (IOException e) {
       if ("closed".equals(e.getMessage())) {
@@ -1194,60 +1639,32 @@ public class MensaService extends RESTService {
   }
 
   /**
-   * Looks up all mensas which match a given name
-   * @param mensaName name of the mensa
-   * @return the set of mensas which match the mensa name
-   */
-  private ResultSet findMensas(String mensaName) {
-    Connection dbConnection = null;
-    PreparedStatement statement = null;
-    ResultSet res;
-
-    try {
-      dbConnection = getDatabaseConnection();
-      statement =
-        dbConnection.prepareStatement("SELECT * FROM mensas WHERE name LIKE ?");
-      statement.setString(1, "%" + mensaName.trim() + "%");
-      res = statement.executeQuery();
-      return res;
-    } catch (Exception e) {
-      e.printStackTrace();
-      return null;
-    }
-  }
-
-  /**
-   * Looks up all entries matching a given name and city in the database and returns the result set
+   * Looks up all entries matching a given name and city in the search index.
+   * The database is only queried while the index has not been built
    * @param mensaName name of canteen to search for if not provided, all entries matching the city are returned
    * @param city optional city parameter
    * @return entries matching canteen and city
    */
-  private ResultSet findMensas(String mensaName, String city) {
-    System.out.println("Looking up canteens for " + mensaName + " and " + city);
-    if (city == null) return findMensas(mensaName);
-    Connection dbConnection = null;
-    PreparedStatement statement = null;
-    ResultSet res;
-    String query;
-    if (mensaName != null) {
-      query = "SELECT * FROM mensas WHERE city LIKE ? AND name LIKE ?";
-    } else {
-      query = "SELECT * FROM mensas WHERE city LIKE ?";
+  private List<Mensa> findMensas(String mensaName, String city)
+    throws SQLException {
+    MensaIndex index = mensaIndex;
+    if (index != null) {
+      return index.find(mensaName, city);
     }
-    try {
-      dbConnection = getDatabaseConnection();
-      statement = dbConnection.prepareStatement(query);
-      statement.setString(1, "%" + city.trim() + "%");
-      if (mensaName != null) {
-        statement.setString(2, "%" + mensaName.trim() + "%");
-      }
+    return getMensaRepository().find(mensaName, city);
+  }
 
-      res = statement.executeQuery();
-      return res;
-    } catch (Exception e) {
-      e.printStackTrace();
-      return null;
+  /**
+   * Checks whether a canteen exists, in the search index if it has been built
+   * @param mensaId id of the canteen
+   * @return true if the canteen exists
+   */
+  private boolean mensaExists(int mensaId) throws SQLException {
+    MensaIndex index = mensaIndex;
+    if (index != null) {
+      return index.contains(mensaId);
     }
+    return getMensaRepository().exists(mensaId);
   }
 
   /**
@@ -1258,13 +1675,21 @@ public class MensaService extends RESTService {
    * @throws IOException The canteen is closed on the given day or the menu could not be fetched from the openmensa api. If the canteen is closed, the exception message will be "closed"
    */
   public JSONArray getMensaMenu(int mensaID, String date) throws IOException {
-    JSONParser jsonParser = new JSONParser(JSONParser.MODE_PERMISSIVE);
-    String urlString = OPEN_MENSA_API_ENDPOINT + "/canteens/";
+    return getDayMenu(mensaID, date).meals();
+  }
+
+  /**
+   * Gets the menu for a given mensa. While the OpenMensa API is not available, the last known menu is returned
+   * and marked as stale, and a refresh is scheduled in the background
+   * @param mensaID id of the mensa in the OpenMensa API
+   * @param date Date for which the menu should be queried, needs to be in "yyyy-MM-dd" Date format
+   * @return the menu of the mensa for that date. If no date is given, the current day is used. If the given day is on a weekend, the menu for the following monday is returned.
+   * @throws IOException The canteen is closed on the given day or the menu could not be fetched from the openmensa api. If the canteen is closed, the exception message will be "closed"
+   */
+  private DayMenu getDayMenu(int mensaID, String date) throws IOException {
     DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     Calendar cal = Calendar.getInstance();
     int weekday = cal.get(Calendar.DAY_OF_WEEK);
-    JSONArray menu = new JSONArray();
-    boolean closed = true; // if all dishes in the returned menu have the name closed then the mensa is closed
 
     if (date == null || "".equals(date)) { //if date is not provided get current date or monday if current day is weekend
       if (weekday == 1) { // Sunday
@@ -1278,27 +1703,25 @@ public class MensaService extends RESTService {
       }
     }
 
-    urlString += mensaID + "/days/" + date + "/meals";
-    // urlString += mensaID + "/days/" + "2020-11-30" + "/meals";
-
     try {
-      if (!MensaIsOpen(mensaID, date)) {
-        throw new IOException("closed");
+      MenuKey key = new MenuKey(mensaID, date);
+      DayMenu dayMenu = menuCache.get(key);
+      if (dayMenu == null && !openMensa.getCircuitBreaker().isClosed()) {
+        dayMenu = menuRefresher.serveStale(key); // the refresher probes the api, not this request
       }
-
-      URL url = new URL(urlString);
-      URLConnection con = url.openConnection();
-      con.addRequestProperty("Content-type", "application/json");
-      menu = (JSONArray) jsonParser.parse(con.getInputStream());
-
-      for (Object object : menu) {
-        String dishname = ((JSONObject) object).getAsString("name");
-        if (!dishname.contains("geschlossen") && !dishname.contains("closed")) {
-          closed = false;
-          break;
+      if (dayMenu == null) {
+        SQLDatabase db = getDatabase();
+        try {
+          // concurrent requests for the same menu share one request, which returns the meals and tells us whether the mensa is closed
+          dayMenu = menuFetches.execute(key, () -> fetchMenu(key, db));
+        } catch (OpenMensaUnavailableException e) {
+          dayMenu = menuRefresher.serveStale(key);
+          if (dayMenu == null) {
+            throw e;
+          }
         }
       }
-      if (closed) {
+      if (dayMenu.closed()) {
         throw new IOException("closed");
       }
       Context
@@ -1307,11 +1730,7 @@ public class MensaService extends RESTService {
           MonitoringEvent.SERVICE_CUSTOM_MESSAGE_10,
           String.valueOf(mensaID)
         );
-      saveDishes(menu, mensaID);
-      return menu;
-    } catch (ParseException e) {
-      e.printStackTrace();
-      return null;
+      return dayMenu;
     } catch (IOException e) {
       Context
         .get()
@@ -1329,13 +1748,15 @@ public class MensaService extends RESTService {
   private String convertToHtml(JSONArray mensaMenu) {
     String returnString = "";
     JSONArray menus = mensaMenu;
+    Map<Integer, RatingStats> ratings = getRatings(menus);
 
     for (Object o : menus) {
       JSONObject menuItem = (JSONObject) o;
       String type = menuItem.getAsString("category");
       String dish = menuItem.getAsString("name");
       int dishId = menuItem.getAsNumber("id").intValue();
-      float avg = getAverageRating(dishId);
+      RatingStats rating = ratings.get(dishId);
+      float avg = rating != null ? rating.average() : 0;
 
       if (
         !"geschlossen".equals(dish) &&
@@ -1381,232 +1802,155 @@ public class MensaService extends RESTService {
     return returnString;
   }
 
-  /**Saves the dishes for a  menu from a given mensa in the datbase
-   * @param menu the menu of dishes that should be saved
+  /**
+   * Fetches a menu from the OpenMensa API, stores it in the menu cache and saves its dishes.
+   * Does not require a service context, so that it can also be used to prefetch menus
+   * @param key mensa and day of the menu
+   * @param db database in which the dishes are saved
+   * @return the fetched menu
+   * @throws IOException menu could not be fetched
    */
-  private void saveDishes(JSONArray menu, int mensaId) {
-    Date lastUpdate = lastDishUpdate.get((Integer) mensaId);
+  private static DayMenu fetchMenu(MenuKey key, SQLDatabase db)
+    throws IOException {
+    DayMenu dayMenu = openMensa.fetchDayMenu(key.mensaId(), key.date());
+    menuCache.put(key, dayMenu);
+    staleMenus.put(key, dayMenu.asStale());
+    if (!dayMenu.closed()) {
+      saveDishes(dayMenu.meals(), key, db);
+    }
+    return dayMenu;
+  }
 
-    if (
-      lastUpdate != null &&
-      Math.abs(lastUpdate.getTime() - new Date().getTime()) < SIX_HOURS_IN_MS
-    ) {
+  /**Saves the dishes for a  menu from a given mensa in the datbase.
+   * The dishes are written in the background, so that the request does not wait for the database
+   * @param menu the menu of dishes that should be saved
+   * @param key mensa and day of the menu
+   * @param db database in which the dishes are saved
+   */
+  private static void saveDishes(JSONArray menu, MenuKey key, SQLDatabase db) {
+    if (lastDishUpdate.get(key) != null) {
       return;
     }
-    System.out.println("Updating dishes...");
-    Context
-      .get()
-      .monitorEvent(
-        MonitoringEvent.SERVICE_CUSTOM_MESSAGE_43,
-        System.currentTimeMillis() + ""
-      );
-    lastDishUpdate.put((Integer) mensaId, new Date());
+    lastDishUpdate.put(key, new Date());
     try {
-      Connection con = getDatabaseConnection();
-      menu.forEach(
-        menuitem -> {
-          try {
-            JSONObject json = (JSONObject) menuitem;
-            if (
-              !json.containsValue("geschlossen") &&
-              !json.containsValue("closed")
-            ) {
-              addDishEntry(json, con, mensaId);
-            }
-          } catch (SQLException e) {
-            e.printStackTrace();
-          }
-        }
-      );
-      con.close();
-      System.out.println("Done saving dishes");
-    } catch (Exception e) {
-      e.printStackTrace();
-      Context
-        .get()
-        .monitorEvent(MonitoringEvent.SERVICE_CUSTOM_ERROR_1, e.getMessage());
+      dishWriter.execute(() -> writeDishes(menu, key, db));
+    } catch (RejectedExecutionException e) {
+      lastDishUpdate.invalidate(key); // the writer is busy, try again with the next request for this menu
     }
   }
 
-  /**
-   * updates the mensas in the database
-   * only update the mensas once a month. Mensas do not change that often as
-   * mentioned on https://doc.openmensa.org/api/v2/canteens/
+  /** Writes the dishes of a menu with one batch in a single transaction
+   * @param menu the menu of dishes that should be saved
+   * @param key mensa and day of the menu
+   * @param db database in which the dishes are saved
    */
-  protected void fetchMensas() {
-    if (
-      lastMensasUpdate != null &&
-      (
-        Math.abs(new Date().getTime() - lastMensasUpdate.getTime()) <
-        30 *
-        ONE_DAY_IN_MS
-      )
-    ) {
-      return;
+  private static void writeDishes(JSONArray menu, MenuKey key, SQLDatabase db) {
+    List<Dish> dishes = new ArrayList<>();
+    for (Object menuitem : menu) {
+      JSONObject json = (JSONObject) menuitem;
+      if (
+        json.containsValue("geschlossen") ||
+        json.containsValue("closed") ||
+        json.getAsString("name").contains("Boisson") //Luxemburgish canteens add drinks to the menu. Dont save those in dishes
+      ) {
+        continue;
+      }
+      dishes.add(
+        new Dish(
+          Integer.parseInt(json.getAsString("id")),
+          json.getAsString("name"),
+          json.getAsString("category")
+        )
+      );
     }
-    lastMensasUpdate = new Date();
-    System.out.println("Updating mensas...");
-    JSONParser jsonParser = new JSONParser(JSONParser.MODE_PERMISSIVE);
-    Connection dbConnection = null;
-    String urlString = OPEN_MENSA_API_ENDPOINT + "/canteens/";
-    JSONArray mensas;
-    int updates = 0; // number of entries modified
-    Integer totalPages = 0;
-
     try {
-      dbConnection = database.getDataSource().getConnection();
-      URL url = new URL(urlString);
-      URLConnection con = url.openConnection();
-      InputStream in = con.getInputStream();
-      totalPages = Integer.parseInt(con.getHeaderField("x-total-pages"));
-      System.out.println(totalPages + " pages to process");
-
-      mensas = (JSONArray) jsonParser.parse(in);
-
-      for (Object mensa : mensas) {
-        updates += addOrUpdateMensaEntry((JSONObject) mensa, dbConnection);
-      }
-
-      if (totalPages == 1) {
-        return;
-      }
-
-      for (Integer page = 1; page <= totalPages; page++) {
-        urlString =
-          OPEN_MENSA_API_ENDPOINT + "/canteens?page=" + page.toString();
-        url = new URL(urlString);
-        con = url.openConnection();
-        mensas = (JSONArray) jsonParser.parse(con.getInputStream());
-
-        for (Object mensa : mensas) {
-          updates += addOrUpdateMensaEntry((JSONObject) mensa, dbConnection);
-        }
-      }
-      System.out.println(updates + " entries modified");
-    } catch (IOException | ParseException | SQLException e) {
-      e.printStackTrace();
-      Context
-        .get()
-        .monitorEvent(MonitoringEvent.SERVICE_CUSTOM_ERROR_1, e.getMessage());
-    } finally {
-      try {
-        if (dbConnection != null && !dbConnection.isClosed()) {
-          dbConnection.close();
-        }
-      } catch (SQLException e) {
-        e.printStackTrace();
-      }
+      new DishRepository(db).saveAll(key.mensaId(), dishes);
+      dishesSaved.addAndGet(dishes.size());
+    } catch (SQLException | RuntimeException e) {
+      dishBatchesFailed.incrementAndGet();
+      lastDishUpdate.invalidate(key); // save the dishes again with the next request for this menu
+      System.out.println(
+        "Could not save dishes of mensa " + key.mensaId() + ": " + e.getMessage()
+      );
     }
   }
 
-  /** Updates a mensa entry in the database
-   * @param obj the entry, which sould be modified
-   * @return number of updates
+  /** Returns the database of the service instance. Do not use this function outside a service request context
    */
-  private int addOrUpdateMensaEntry(JSONObject obj, Connection con)
-    throws SQLException {
-    PreparedStatement statement = con.prepareStatement(
-      "INSERT IGNORE INTO mensas VALUES(?,?,?,?)"
-    );
-    statement.setInt(1, Integer.parseInt(obj.getAsString("id")));
-    statement.setString(2, obj.getAsString("name"));
-    statement.setString(3, obj.getAsString("city"));
-    statement.setString(4, obj.getAsString("address"));
-    int updated = statement.executeUpdate();
-    statement.close();
-    return updated;
+  private SQLDatabase getDatabase() {
+    MensaService service = (MensaService) Context.get().getService();
+
+    return service.database;
   }
 
-  /** Updates a dish entry in the database
-   * @param obj the entry, which sould be modified
-   * @param con database connection
-   * @param mensaId the id of the mensa at which the dish is served
-   * @return number of updates
-   */
-  private int addDishEntry(JSONObject obj, Connection con, int mensaId)
-    throws SQLException {
-    if (obj.getAsString("name").contains("Boisson")) {
-      return 0; //Luxemburgish canteens add drinks to the menu. Dont save those in dishes
-    }
-    PreparedStatement statement = con.prepareStatement(
-      "INSERT IGNORE INTO dishes VALUES  (?,?,?,?)"
-    );
-    statement.setInt(1, Integer.parseInt(obj.getAsString("id")));
-    statement.setInt(2, mensaId);
-
-    statement.setString(3, obj.getAsString("name"));
-    statement.setString(4, obj.getAsString("category"));
-    int updated = statement.executeUpdate();
-    statement.close();
-    return updated;
+  private MensaRepository getMensaRepository() {
+    return ((MensaService) Context.get().getService()).mensaRepository;
   }
 
-  /** Returns a connection to the database. Do not use this function outside a service request contextz
-   * like in the constructor of the service, because Contex.get() will throw an IllegalStateException
-   */
-  private Connection getDatabaseConnection() throws SQLException {
-    MensaService service = (MensaService) Context.get().getService();
+  private DishRepository getDishRepository() {
+    return ((MensaService) Context.get().getService()).dishRepository;
+  }
 
-    return service.database.getDataSource().getConnection();
+  private ReviewRepository getReviewRepository() {
+    return ((MensaService) Context.get().getService()).reviewRepository;
   }
 
   /**
-   * function which extracts the mensa from a resultset. If more than one row are provided a Chatexception is thrown
-   * @param mensas Resultset containing the mensas as rows
+   * function which extracts the mensa matching a name and city. The matching mensas are ranked by the similarity of their names
+   * and their popularity. If no mensa contains the name, mensas with similar names are considered instead.
+   * If the best match clearly wins, it is selected, otherwise a ChatException is thrown
+   * @param mensaName name of the mensa given by the user, may be null
+   * @param city city given by the user, may be null
    * @return Object containing the name and id of the mensa
-   * @throws ChatException the error message contains a list of mensas in the set
-   * @throws SQLException thrown if a db error occured
+   * @throws ChatException the error message contains a list of mensas, best match first
    */
-  private JSONObject selectMensa(ResultSet mensas, JSONObject context)
+  private JSONObject selectMensa(
+    String mensaName,
+    String city,
+    JSONObject context
+  )
     throws ChatException, SQLException {
-    JSONObject mensa = new JSONObject();
-
-    if (mensas == null || !mensas.next()) throw new ChatException(
+    List<Mensa> mensas = findMensas(mensaName, city);
+    List<MensaMatcher.Match> ranked;
+    MensaIndex index = mensaIndex;
+    if (mensas.isEmpty() && mensaName != null && index != null) { // probably a typo
+      ranked = new ArrayList<>();
+      for (MensaMatcher.Match match : mensaMatcher.rank(
+        index.find(null, city),
+        mensaName
+      )) {
+        if (match.score() >= MensaMatcher.MIN_FUZZY_SCORE) {
+          ranked.add(match);
+        }
+      }
+    } else {
+      ranked = mensaMatcher.rank(mensas, mensaName);
+    }
+    if (ranked.isEmpty()) throw new ChatException(
       "Sorry, I could not find a mensa with that name. 💁"
     );
+    if (ranked.size() == 1 || MensaMatcher.isClearWinner(ranked)) {
+      mensasSelected.incrementAndGet();
+      return ranked.get(0).mensa().toJSON();
+    }
+    mensaSelectionsAsked.incrementAndGet();
+
+    int listed = Math.min(ranked.size(), maxEntries - 1);
     String[] selection = new String[maxEntries];
-    String first = mensas.getString("name"); // first entry
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < listed; i++) {
+      selection[i] = ranked.get(i).mensa().name();
+      ids.add(ranked.get(i).mensa().id());
+    }
 
-    int id = mensas.getInt("id");
-    String city = mensas.getString("city");
     String response = "I found the following mensas: \n";
-    try {
-      if (MensaIsOpen(id, null)) {
-        response += "1. " + first + "\n";
-      } else {
-        response += "1. " + first + " (closed)\n";
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-      response += "1. " + first + "\n";
+    Boolean[] open = getOpenStatus(ids, openStatusDeadlineMillis);
+    for (int j = 0; j < ids.size(); j++) {
+      response += (j + 1) + ". " + selection[j];
+      response += Boolean.FALSE.equals(open[j]) ? " (closed)\n" : "\n"; // no label if the status is unknown
     }
-
-    selection[0] = first;
-    int i = 2;
-
-    while (mensas.next() && i < maxEntries) { //at least 2 entries
-      try {
-        if (MensaIsOpen(mensas.getInt("id"), null)) {
-          response += i + ". " + mensas.getString("name") + "\n";
-        } else {
-          response += i + ". " + mensas.getString("name") + " (closed)\n";
-        }
-      } catch (Exception e) {
-        e.printStackTrace();
-        response += i + ". " + mensas.getString("name") + "\n";
-      }
-      selection[i - 1] = mensas.getString("name");
-      i++;
-    }
-
-    if (i == 2) {
-      mensa.put("name", first);
-      mensa.put("city", city);
-      mensa.put("id", id);
-      return mensa;
-    } else if (i == maxEntries) {
-      mensas.last();
-      int total = mensas.getRow();
+    if (listed == maxEntries - 1) {
+      int total = ranked.size();
       System.out.println("Found a total of " + total + " matching mensas");
       if (total > maxEntries) {
         response += "and " + (total - maxEntries) + " more...\n";
@@ -1614,11 +1958,9 @@ public class MensaService extends RESTService {
           "Specify the name of your mensa more clearly, if your mensa is not on the list\n";
       }
     }
-    if (i != 2) {
-      //save selection in context
-      context.put("currentSelection", selection);
-      ContextInfo.put(context.getAsString("email"), context);
-    }
+    //save selection in context
+    context.put("currentSelection", selection);
+    ContextInfo.put(context.getAsString("email"), context);
     response += "Please specify your mensa.";
     throw new ChatException(response, false);
   }
@@ -1655,14 +1997,8 @@ public class MensaService extends RESTService {
   }
 
   private JSONObject getContext(String email) throws ParseException {
-    Object obj = ContextInfo.get(email);
-
-    if (obj instanceof JSONObject) {
-      JSONObject context = (JSONObject) (obj);
-
-      return context;
-    }
-    return new JSONObject();
+    JSONObject context = ContextInfo.get(email);
+    return context != null ? context : new JSONObject();
   }
 
   /**
@@ -1693,28 +2029,83 @@ public class MensaService extends RESTService {
     throw new ChatException("Could not find a dish for " + keyword + "💁\n ");
   }
 
-  private boolean MensaIsOpen(int mensaID, String date)
-      throws MalformedURLException, ParseException, IOException {
-    JSONParser jsonParser = new JSONParser(JSONParser.MODE_PERMISSIVE);
+  /**
+   * Looks up whether the given mensas are open today. The lookups run concurrently and
+   * are answered from the open status cache where possible
+   * @param ids ids of the mensas
+   * @param deadlineMillis maximum time in ms to wait for the lookups
+   * @return for each mensa whether it is open, null if the status is not known by the deadline
+   */
+  private static Boolean[] getOpenStatus(List<Integer> ids, long deadlineMillis) {
+    String today = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+    Boolean[] open = new Boolean[ids.size()];
+    List<CompletableFuture<Boolean>> lookups = new ArrayList<>();
+    for (int i = 0; i < ids.size(); i++) {
+      int mensaId = ids.get(i);
+      open[i] = openStatusCache.get(new MenuKey(mensaId, today));
+      lookups.add(
+        open[i] != null
+          ? CompletableFuture.completedFuture(open[i])
+          : CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return MensaIsOpen(mensaId, today);
+              } catch (IOException e) {
+                throw new CompletionException(e);
+              }
+            },
+            openStatusChecks
+          )
+      );
+    }
+    try {
+      CompletableFuture
+        .allOf(lookups.toArray(new CompletableFuture[0]))
+        .get(deadlineMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException | ExecutionException e) {
+      // use the lookups which have completed, the others keep running and fill the cache
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (int i = 0; i < open.length; i++) {
+      CompletableFuture<Boolean> lookup = lookups.get(i);
+      if (lookup.isDone() && !lookup.isCompletedExceptionally()) {
+        open[i] = lookup.join();
+      }
+    }
+    return open;
+  }
+
+  private static boolean MensaIsOpen(int mensaID, String date)
+    throws IOException {
     DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     if (date == null) {
       date = dateFormat.format(new Date());
     }
-    String urlString = OPEN_MENSA_API_ENDPOINT + "/canteens/" + mensaID + "/days/" + date;
-
-    URL url = new URL(urlString);
-
-    try{
-    URLConnection con = url.openConnection();
-    con.setConnectTimeout(30000); // timeout after 30 seconds
-    con.setReadTimeout(60000); // timeout after 60 seconds
-    con.addRequestProperty("Content-type", "application/json");
-    JSONObject response = (JSONObject) jsonParser.parse(con.getInputStream());
-    return !(Boolean) response.get("closed");}
-    catch(SocketTimeoutException e){
-      throw new IOException("The OpenMensa API cannot be reached");
+    MenuKey key = new MenuKey(mensaID, date);
+    DayMenu dayMenu = menuCache.get(key);
+    if (dayMenu != null) {
+      return !dayMenu.closed(); // the menu of that day has already been fetched
+    }
+    dayMenu = staleMenus.get(key);
+    if (dayMenu != null && !openMensa.getCircuitBreaker().isClosed()) {
+      return !dayMenu.closed(); // do not probe the api while answering a request
+    }
+    final String day = date;
+    try {
+      boolean open = openStatusFetches.execute(
+        key,
+        () -> openMensa.isOpen(mensaID, day)
+      );
+      openStatusCache.put(key, open);
+      return open;
+    } catch (OpenMensaUnavailableException e) {
+      dayMenu = staleMenus.get(key);
+      if (dayMenu == null) {
+        throw e;
+      }
+      return !dayMenu.closed();
     }
-
   }
 
   // hard coded IDs of mensas in Aachen
@@ -1772,8 +2163,7 @@ public class MensaService extends RESTService {
    */
   private boolean isMensaSupported(String mensa) {
     try {
-      ResultSet res = findMensas(mensa);
-      return res.next(); //true if at least one entry matches the input
+      return !findMensas(mensa, null).isEmpty(); //true if at least one entry matches the input
     } catch (Exception e) {
       e.printStackTrace();
       return false;
@@ -1838,25 +2228,9 @@ public class MensaService extends RESTService {
   private JSONArray getRatingsForDish(int id) {
     JSONArray result = new JSONArray();
     try {
-      Connection con = getDatabaseConnection();
-      PreparedStatement s = con.prepareStatement(
-        "SELECT author, stars, comment, timestamp , category, mensas.name, mensas.city FROM reviews JOIN mensas ON mensas.id=reviews.mensaId JOIN dishes ON dishes.id=reviews.dishId WHERE dishes.id=?"
-      );
-      s.setInt(1, id);
-      ResultSet res = s.executeQuery();
-      while (res.next()) {
-        JSONObject rating = new JSONObject();
-        rating.put("author", res.getString(1));
-        rating.put("stars", res.getInt(2));
-        rating.put("comment", res.getString(3));
-        rating.put("timestamp", res.getDate(4));
-        rating.put("category", res.getString(5));
-        rating.put("mensaName", res.getString(6));
-        rating.put("city", res.getString(7));
-
-        result.add(rating);
+      for (Review review : getReviewRepository().findByDish(id)) {
+        result.add(review.toJSON());
       }
-      con.close();
       return result;
     } catch (SQLException e) {
       e.printStackTrace();
@@ -27,7 +27,5 @@ public class PrematchingRequestFilter implements ContainerRequestFilter {
         .monitorEvent(MonitoringEvent.MESSAGE_RECEIVED, "Useraction");
     }
     ctx.setProperty("timestamp", System.currentTimeMillis());
-    MensaService service = (MensaService) Context.getCurrent().getService();
-    service.fetchMensas();
   }
 }
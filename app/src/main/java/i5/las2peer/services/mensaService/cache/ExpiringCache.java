@@ -0,0 +1,166 @@
+package i5.las2peer.services.mensaService.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import net.minidev.json.JSONObject;
+
+/**
+ * A small thread-safe in-memory cache with a time to live and an upper bound
+ * on the number of entries. When the cache is full, the least recently used
+ * entry is evicted. Optionally, reading an entry extends its time to live, so
+ * that only entries which have not been used for the time to live expire.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public class ExpiringCache<K, V> {
+
+  private final long ttlMillis;
+  private final int maxEntries;
+  private final boolean refreshOnAccess;
+  private final LinkedHashMap<K, Entry<V>> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  /**
+   * @param ttlMillis time in ms after which an entry is considered stale
+   * @param maxEntries maximum number of entries held by the cache
+   */
+  public ExpiringCache(long ttlMillis, int maxEntries) {
+    this(ttlMillis, maxEntries, false);
+  }
+
+  /**
+   * @param ttlMillis time in ms after which an entry is considered stale
+   * @param maxEntries maximum number of entries held by the cache
+   * @param refreshOnAccess if true, the time to live starts again whenever an entry is read
+   */
+  public ExpiringCache(long ttlMillis, int maxEntries, boolean refreshOnAccess) {
+    if (ttlMillis <= 0 || maxEntries <= 0) {
+      throw new IllegalArgumentException(
+        "ttl and maximum size of the cache must be positive"
+      );
+    }
+    this.ttlMillis = ttlMillis;
+    this.maxEntries = maxEntries;
+    this.refreshOnAccess = refreshOnAccess;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true); // access order for lru eviction
+  }
+
+  /**
+   * Looks up a value
+   * @param key key of the entry
+   * @return the cached value or null if there is no fresh entry for the key
+   */
+  public synchronized V get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    if (entry.isExpired(System.currentTimeMillis())) {
+      entries.remove(key);
+      expirations.incrementAndGet();
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    if (refreshOnAccess) {
+      entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+    }
+    return entry.value;
+  }
+
+  /**
+   * Adds or replaces an entry. Evicts the least recently used entry if the cache is full.
+   * @param key key of the entry
+   * @param value value to cache, null values are not cached
+   */
+  public synchronized void put(K key, V value) {
+    if (value == null) {
+      return;
+    }
+    entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+    if (entries.size() > maxEntries) {
+      removeExpired();
+    }
+    Iterator<K> it = entries.keySet().iterator();
+    while (entries.size() > maxEntries && it.hasNext()) {
+      it.next();
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Tells how long an entry stays fresh, without counting as a hit or miss
+   * @param key key of the entry
+   * @return time in ms until the entry expires, 0 if there is no fresh entry for the key
+   */
+  public synchronized long remainingMillis(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return 0;
+    }
+    return Math.max(0, entry.expiresAt - System.currentTimeMillis());
+  }
+
+  public synchronized void invalidate(K key) {
+    entries.remove(key);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return hit, miss and eviction counters of this cache as json
+   */
+  public JSONObject getStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("size", size());
+    stats.put("maxEntries", maxEntries);
+    stats.put("ttlSeconds", ttlMillis / 1000);
+    stats.put("refreshOnAccess", refreshOnAccess);
+    stats.put("hits", hits.get());
+    stats.put("misses", misses.get());
+    stats.put("evictions", evictions.get());
+    stats.put("expirations", expirations.get());
+    return stats;
+  }
+
+  private void removeExpired() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().getValue().isExpired(now)) {
+        it.remove();
+        expirations.incrementAndGet();
+      }
+    }
+  }
+
+  private static class Entry<V> {
+
+    final V value;
+    long expiresAt; // only changed while holding the lock of the cache
+
+    Entry(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired(long now) {
+      return now >= expiresAt;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package i5.las2peer.services.mensaService.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import net.minidev.json.JSONObject;
+
+/**
+ * Registry of requests which are currently running. Callers asking for the same key
+ * while a request for that key is in flight wait for the running request and share its result
+ * instead of starting an identical request.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the results
+ */
+public class InFlightRequests<K, V> {
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong merged = new AtomicLong();
+
+  /**
+   * Executes the loader unless a request for the same key is already running.
+   * In that case the result of the running request is returned
+   * @param key key identifying the request
+   * @param loader performs the actual request
+   * @return result of the request
+   * @throws IOException the request failed. All waiting callers receive the error
+   */
+  public V execute(K key, Loader<V> loader) throws IOException {
+    calls.incrementAndGet();
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+    if (running != null) {
+      merged.incrementAndGet();
+      return await(running);
+    }
+
+    try {
+      V result = loader.load();
+      future.complete(result);
+      return result;
+    } catch (Throwable e) {
+      future.completeExceptionally(e); // also on errors, otherwise the waiting callers never return
+      throw e;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * @return number of calls and how many of them were merged into a running request
+   */
+  public JSONObject getStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("calls", calls.get());
+    stats.put("merged", merged.get());
+    stats.put("inFlight", inFlight.size());
+    return stats;
+  }
+
+  private V await(CompletableFuture<V> running) throws IOException {
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for request");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      // keep message and type, callers check them
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /** Performs the request for a key */
+  @FunctionalInterface
+  public interface Loader<V> {
+    V load() throws IOException;
+  }
+}
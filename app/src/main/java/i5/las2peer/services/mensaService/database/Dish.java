@@ -0,0 +1,21 @@
+package i5.las2peer.services.mensaService.database;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * A dish as stored in the dishes table.
+ *
+ * @param id       id of the dish in the OpenMensa API
+ * @param name     name of the dish
+ * @param category category of the dish, e.g. Vegetarisch
+ */
+public record Dish(int id, String name, String category) {
+
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("name", name);
+		json.put("id", id);
+		json.put("category", category);
+		return json;
+	}
+}
@@ -0,0 +1,216 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ *
+ * Access to the dishes table. Connections are only held for the duration of a
+ * call. Listings and ratings are read from the read replica if there is one.
+ *
+ */
+public class DishRepository {
+
+	// one row per dish id, read along the primary key
+	private static final String DISHES_AFTER = "SELECT id, MIN(name), MIN(category) FROM dishes WHERE id > ? GROUP BY id ORDER BY id";
+
+	private final SQLDatabase database;
+
+	public DishRepository(SQLDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 *
+	 * Returns a page of the dishes that have been served in any canteen, ordered
+	 * by id. The next page starts after the id of the last dish of this page, so
+	 * reading a page does not depend on the number of pages before it.
+	 *
+	 * @param after id of the last dish of the previous page,
+	 *              {@link Integer#MIN_VALUE} for the first page
+	 * @param limit maximum number of dishes
+	 *
+	 * @return distinct dishes
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public List<Dish> findPage(int after, int limit) throws SQLException {
+		try (Connection con = database.getReadConnection();
+				PreparedStatement statement = con.prepareStatement(DISHES_AFTER + " LIMIT ?")) {
+			statement.setInt(1, after);
+			statement.setInt(2, limit);
+			try (ResultSet res = statement.executeQuery()) {
+				List<Dish> dishes = new ArrayList<>();
+				while (res.next()) {
+					dishes.add(new Dish(res.getInt(1), res.getString(2), res.getString(3)));
+				}
+				return dishes;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Passes all dishes after an id on while the rows are received from the
+	 * database, ordered by id. The dishes are never held in memory as a whole.
+	 *
+	 * @param after    id after which to start, {@link Integer#MIN_VALUE} for all
+	 *                 dishes
+	 * @param consumer receives the dishes
+	 *
+	 * @return number of dishes passed on
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public int stream(int after, Consumer<Dish> consumer) throws SQLException {
+		try (Cursor cursor = open(after)) {
+			int dishes = 0;
+			for (Dish dish = cursor.next(); dish != null; dish = cursor.next()) {
+				consumer.accept(dish);
+				dishes++;
+			}
+			return dishes;
+		}
+	}
+
+	/**
+	 *
+	 * Runs the query for all dishes after an id and reads the first row, so that
+	 * a failing query is noticed before anything has been passed on. The rows are
+	 * received from the database while the cursor is read.
+	 *
+	 * @param after id after which to start, {@link Integer#MIN_VALUE} for all
+	 *              dishes
+	 *
+	 * @return the open cursor, which holds a connection until it is closed
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public Cursor open(int after) throws SQLException {
+		Connection con = database.getReadConnection();
+		try {
+			PreparedStatement statement = con.prepareStatement(DISHES_AFTER, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(database.getJdbcInfo().getStreamingFetchSize());
+			statement.setInt(1, after);
+			return new Cursor(con, statement.executeQuery());
+		} catch (SQLException e) {
+			con.close();
+			throw e;
+		}
+	}
+
+	/**
+	 *
+	 * Dishes read one by one from an open query, ordered by id.
+	 *
+	 */
+	public static final class Cursor implements AutoCloseable {
+
+		private final Connection con;
+		private final ResultSet res;
+		private boolean hasNext;
+
+		private Cursor(Connection con, ResultSet res) throws SQLException {
+			this.con = con;
+			this.res = res;
+			hasNext = res.next();
+		}
+
+		/**
+		 *
+		 * @return the next dish or null if all dishes have been read
+		 *
+		 * @throws SQLException the connection failed while reading
+		 *
+		 */
+		public Dish next() throws SQLException {
+			if (!hasNext) {
+				return null;
+			}
+			Dish dish = new Dish(res.getInt(1), res.getString(2), res.getString(3));
+			hasNext = res.next();
+			return dish;
+		}
+
+		/**
+		 *
+		 * Closes the query and returns the connection to the pool.
+		 *
+		 */
+		@Override
+		public void close() throws SQLException {
+			try (Connection c = con; Statement statement = res.getStatement(); ResultSet r = res) {
+				// closed in reverse order
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Looks up the name of a dish.
+	 *
+	 * @param id id of the dish
+	 *
+	 * @return the name or null if the dish is unknown
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public String findName(int id) throws SQLException {
+		try (Connection con = database.getDataSource().getConnection();
+				PreparedStatement statement = con.prepareStatement("SELECT (name) FROM dishes WHERE id=?")) {
+			statement.setInt(1, id);
+			try (ResultSet res = statement.executeQuery()) {
+				return res.next() ? res.getString(1) : null;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Saves the dishes of a canteen with one batch in a single transaction.
+	 * Dishes which are already known are ignored.
+	 *
+	 * @param mensaId id of the canteen serving the dishes
+	 * @param dishes  the dishes to save
+	 *
+	 * @throws SQLException the dishes could not be saved, none of them is saved
+	 *
+	 */
+	public void saveAll(int mensaId, List<Dish> dishes) throws SQLException {
+		if (dishes.isEmpty()) {
+			return;
+		}
+		try (Connection con = database.getDataSource().getConnection();
+				PreparedStatement statement = con.prepareStatement("INSERT IGNORE INTO dishes VALUES  (?,?,?,?)")) {
+			for (Dish dish : dishes) {
+				statement.setInt(1, dish.id());
+				statement.setInt(2, mensaId);
+				statement.setString(3, dish.name());
+				statement.setString(4, dish.category());
+				statement.addBatch();
+			}
+			boolean autoCommit = con.getAutoCommit();
+			con.setAutoCommit(false);
+			try {
+				statement.executeBatch();
+				con.commit();
+			} catch (SQLException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(autoCommit);
+			}
+		}
+	}
+}
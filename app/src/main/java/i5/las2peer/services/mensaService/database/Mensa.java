@@ -0,0 +1,23 @@
+package i5.las2peer.services.mensaService.database;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * A canteen as stored in the mensas table.
+ *
+ * @param id      id of the canteen in the OpenMensa API
+ * @param name    name of the canteen
+ * @param city    city in which the canteen is located
+ * @param address address of the canteen
+ */
+public record Mensa(int id, String name, String city, String address) {
+
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("id", id);
+		json.put("name", name);
+		json.put("city", city);
+		json.put("address", address);
+		return json;
+	}
+}
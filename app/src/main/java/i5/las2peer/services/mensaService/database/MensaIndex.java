@@ -0,0 +1,248 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * Immutable in-memory index of the canteens for substring lookups by name, city
+ * or address. Every field is indexed by the trigrams of its values, so a lookup
+ * only checks the canteens containing all trigrams of the searched text instead
+ * of scanning the whole table. Matching ignores case and accents, like LIKE
+ * '%text%' on the utf8_general_ci columns of the mensas table. A changed
+ * catalog is published by building a new index.
+ *
+ */
+public final class MensaIndex {
+
+	public enum Field {
+		NAME, CITY, ADDRESS
+	}
+
+	private static final int GRAM = 3;
+	private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+	private final Mensa[] mensas; // ordered by id
+	private final Map<Field, FieldIndex> fields = new EnumMap<>(Field.class);
+	private final long builtAt = System.currentTimeMillis();
+
+	private MensaIndex(Mensa[] mensas) {
+		this.mensas = mensas;
+		fields.put(Field.NAME, new FieldIndex(mensas, Mensa::name));
+		fields.put(Field.CITY, new FieldIndex(mensas, Mensa::city));
+		fields.put(Field.ADDRESS, new FieldIndex(mensas, Mensa::address));
+	}
+
+	/**
+	 *
+	 * Builds the index for a list of canteens.
+	 *
+	 * @param mensas all canteens
+	 *
+	 * @return the index
+	 *
+	 */
+	public static MensaIndex build(Collection<Mensa> mensas) {
+		Mensa[] sorted = mensas.toArray(new Mensa[0]);
+		Arrays.sort(sorted, Comparator.comparingInt(Mensa::id));
+		return new MensaIndex(sorted);
+	}
+
+	/**
+	 *
+	 * Looks up all canteens matching a name and a city, with the same results as
+	 * {@link MensaRepository#find(String, String)}.
+	 *
+	 * @param name part of the name of the canteen, all canteens if null
+	 * @param city part of the city of the canteen, all cities if null
+	 *
+	 * @return the matching canteens ordered by id
+	 *
+	 */
+	public List<Mensa> find(String name, String city) {
+		Map<Field, String> query = new EnumMap<>(Field.class);
+		if (name != null) {
+			query.put(Field.NAME, name);
+		}
+		if (city != null) {
+			query.put(Field.CITY, city);
+		}
+		return find(query);
+	}
+
+	/**
+	 *
+	 * Looks up all canteens whose fields contain the given texts.
+	 *
+	 * @param query text to search for in each field
+	 *
+	 * @return the canteens matching every text of the query ordered by id
+	 *
+	 */
+	public List<Mensa> find(Map<Field, String> query) {
+		Map<Field, String> normalized = new EnumMap<>(Field.class);
+		int[] candidates = null;
+		for (Map.Entry<Field, String> entry : query.entrySet()) {
+			String text = normalize(entry.getValue().trim());
+			normalized.put(entry.getKey(), text);
+			int[] matches = fields.get(entry.getKey()).candidates(text);
+			if (matches != null) {
+				candidates = candidates == null ? matches : intersect(candidates, matches);
+			}
+		}
+
+		List<Mensa> result = new ArrayList<>();
+		int count = candidates == null ? mensas.length : candidates.length;
+		for (int i = 0; i < count; i++) {
+			int candidate = candidates == null ? i : candidates[i];
+			if (matches(candidate, normalized)) {
+				result.add(mensas[candidate]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * Checks whether there is a canteen with an id.
+	 *
+	 * @param id id of the canteen
+	 *
+	 * @return true if the canteen is in the index
+	 *
+	 */
+	public boolean contains(int id) {
+		int low = 0;
+		int high = mensas.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (mensas[middle].id() < id) {
+				low = middle + 1;
+			} else if (mensas[middle].id() > id) {
+				high = middle - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return mensas.length;
+	}
+
+	/**
+	 * @return time in ms since epoch at which the index was built
+	 */
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	private boolean matches(int candidate, Map<Field, String> query) {
+		for (Map.Entry<Field, String> entry : query.entrySet()) {
+			String value = fields.get(entry.getKey()).values[candidate];
+			if (value == null || !value.contains(entry.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lower case without accents, so that e.g. "Mensa Vita" and "mensa vitá" are
+	 * equal
+	 */
+	static String normalize(String text) {
+		return MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+				.toLowerCase(Locale.ROOT);
+	}
+
+	private static int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int n = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * The normalized values of one field and, for each trigram, the positions of
+	 * the canteens containing it in ascending order
+	 */
+	private static final class FieldIndex {
+
+		final String[] values;
+		final Map<String, int[]> grams;
+
+		FieldIndex(Mensa[] mensas, Function<Mensa, String> field) {
+			values = new String[mensas.length];
+			Map<String, int[]> postings = new HashMap<>();
+			Map<String, Integer> sizes = new HashMap<>();
+			for (int i = 0; i < mensas.length; i++) {
+				String value = field.apply(mensas[i]);
+				if (value == null) {
+					continue;
+				}
+				values[i] = normalize(value);
+				for (int start = 0; start + GRAM <= values[i].length(); start++) {
+					String gram = values[i].substring(start, start + GRAM);
+					int size = sizes.getOrDefault(gram, 0);
+					int[] positions = postings.get(gram);
+					if (positions == null) {
+						positions = new int[4];
+					} else if (positions[size - 1] == i) {
+						continue; // trigram occurs more than once in this value
+					} else if (size == positions.length) {
+						positions = Arrays.copyOf(positions, size * 2);
+					}
+					positions[size] = i;
+					postings.put(gram, positions);
+					sizes.put(gram, size + 1);
+				}
+			}
+			grams = new HashMap<>(postings.size() * 2);
+			postings.forEach((gram, positions) -> grams.put(gram, Arrays.copyOf(positions, sizes.get(gram))));
+		}
+
+		/**
+		 * @return positions of the canteens which may contain the text, null if the
+		 *         text is too short to narrow down the canteens
+		 */
+		int[] candidates(String text) {
+			if (text.length() < GRAM) {
+				return null;
+			}
+			int[] result = null;
+			for (int start = 0; start + GRAM <= text.length(); start++) {
+				int[] positions = grams.get(text.substring(start, start + GRAM));
+				if (positions == null) {
+					return new int[0];
+				}
+				result = result == null ? positions : intersect(result, positions);
+				if (result.length == 0) {
+					break;
+				}
+			}
+			return result;
+		}
+	}
+}
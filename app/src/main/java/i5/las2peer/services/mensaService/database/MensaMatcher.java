@@ -0,0 +1,173 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntToLongFunction;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * Ranks canteens by how well their name matches the name given by a user. The
+ * score combines the overlap of the words of both names, where a word may
+ * differ by a few typos, the edit distance of the whole names, a bonus for
+ * identical names and the popularity of the canteen. If the best match clearly wins over all other
+ * canteens, it can be selected without asking the user.
+ *
+ */
+public class MensaMatcher {
+
+	/** Minimum score of the best match to be selected without asking */
+	public static final double SELECT_SCORE = 0.55;
+	/** Minimum distance of the best match to the second best match to be selected */
+	public static final double SELECT_MARGIN = 0.15;
+	/** Minimum score of a canteen whose name does not contain the given name */
+	public static final double MIN_FUZZY_SCORE = 0.4;
+
+	private static final double WORD_WEIGHT = 0.5;
+	private static final double NAME_WEIGHT = 0.3;
+	private static final double EXACT_WEIGHT = 0.1;
+	private static final double POPULARITY_WEIGHT = 0.1;
+	private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	private final IntToLongFunction popularity;
+
+	/**
+	 * A canteen together with its score between 0 and 1.
+	 *
+	 * @param mensa the canteen
+	 * @param score how well the canteen matches, higher is better
+	 */
+	public record Match(Mensa mensa, double score) {
+	}
+
+	/**
+	 *
+	 * @param popularity number of requests for a canteen id, used to rank
+	 *                   canteens with similar names
+	 *
+	 */
+	public MensaMatcher(IntToLongFunction popularity) {
+		this.popularity = popularity;
+	}
+
+	/**
+	 *
+	 * Scores the canteens against a name.
+	 *
+	 * @param candidates canteens to rank
+	 * @param name       name given by the user, if null the canteens are only
+	 *                   ranked by popularity
+	 *
+	 * @return the canteens ordered by score, the best match first
+	 *
+	 */
+	public List<Match> rank(Collection<Mensa> candidates, String name) {
+		String[] words = name == null ? new String[0] : words(name);
+		String query = String.join(" ", words);
+		long maxRequests = 0;
+		for (Mensa mensa : candidates) {
+			maxRequests = Math.max(maxRequests, popularity.applyAsLong(mensa.id()));
+		}
+
+		List<Match> ranked = new ArrayList<>(candidates.size());
+		for (Mensa mensa : candidates) {
+			double score = 0;
+			if (words.length > 0) {
+				String[] mensaWords = words(mensa.name());
+				String mensaName = String.join(" ", mensaWords);
+				score += WORD_WEIGHT * wordOverlap(words, mensaWords) + NAME_WEIGHT * similarity(query, mensaName);
+				if (query.equals(mensaName)) {
+					score += EXACT_WEIGHT; // "Mensa Vita" should win over "Mensa Vita Bistro"
+				}
+			}
+			if (maxRequests > 0) {
+				score += POPULARITY_WEIGHT * Math.log1p(popularity.applyAsLong(mensa.id())) / Math.log1p(maxRequests);
+			}
+			ranked.add(new Match(mensa, score));
+		}
+		ranked.sort(Comparator.comparingDouble(Match::score).reversed()
+				.thenComparingInt(match -> match.mensa().id()));
+		return ranked;
+	}
+
+	/**
+	 *
+	 * Checks whether the best match is good enough and far enough ahead of the
+	 * second best match to be selected without asking the user.
+	 *
+	 * @param ranked result of {@link #rank(Collection, String)}
+	 *
+	 * @return true if the first match should be selected
+	 *
+	 */
+	public static boolean isClearWinner(List<Match> ranked) {
+		if (ranked.isEmpty() || ranked.get(0).score() < SELECT_SCORE) {
+			return false;
+		}
+		return ranked.size() == 1 || ranked.get(0).score() - ranked.get(1).score() >= SELECT_MARGIN;
+	}
+
+	/**
+	 * Average over the words of the query of the similarity to the most similar
+	 * word of the name
+	 */
+	private static double wordOverlap(String[] query, String[] name) {
+		double total = 0;
+		for (String word : query) {
+			double best = 0;
+			for (String candidate : name) {
+				best = Math.max(best, wordSimilarity(word, candidate));
+			}
+			total += best;
+		}
+		return total / query.length;
+	}
+
+	private static double wordSimilarity(String word, String candidate) {
+		if (word.equals(candidate)) {
+			return 1;
+		}
+		if (word.length() >= 3 && candidate.startsWith(word)) {
+			return 0.9; // abbreviated word, e.g. "acad" for "academica"
+		}
+		return similarity(word, candidate);
+	}
+
+	/**
+	 * @return 1 minus the edit distance relative to the longer string
+	 */
+	static double similarity(String a, String b) {
+		int length = Math.max(a.length(), b.length());
+		return length == 0 ? 1 : 1 - (double) distance(a, b) / length;
+	}
+
+	/**
+	 * Levenshtein distance with two rows
+	 */
+	static int distance(String a, String b) {
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++) {
+			previous[j] = j;
+		}
+		for (int i = 1; i <= a.length(); i++) {
+			current[0] = i;
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[b.length()];
+	}
+
+	private static String[] words(String text) {
+		return Arrays.stream(SEPARATORS.split(MensaIndex.normalize(text))).filter(word -> !word.isEmpty())
+				.toArray(String[]::new);
+	}
+}
@@ -0,0 +1,108 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Read access to the mensas table. All results are read completely before the
+ * connection is returned to the pool.
+ *
+ */
+public class MensaRepository {
+
+	private final SQLDatabase database;
+
+	public MensaRepository(SQLDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 *
+	 * Reads all canteens from the primary database, e.g. to build a
+	 * {@link MensaIndex} right after the canteens have been changed.
+	 *
+	 * @return all canteens
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public List<Mensa> findAll() throws SQLException {
+		try (Connection con = database.getDataSource().getConnection()) {
+			return find(con, null, null);
+		}
+	}
+
+	/**
+	 *
+	 * Looks up all canteens matching a name and a city. The query is sent to the
+	 * read replica if there is one.
+	 *
+	 * @param name part of the name of the canteen, all canteens if null
+	 * @param city part of the city of the canteen, all cities if null
+	 *
+	 * @return the matching canteens
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public List<Mensa> find(String name, String city) throws SQLException {
+		try (Connection con = database.getReadConnection()) {
+			return find(con, name, city);
+		}
+	}
+
+	/**
+	 *
+	 * Checks whether there is a canteen with an id. The primary is queried, since
+	 * the reviews referencing the canteen are written to it.
+	 *
+	 * @param id id of the canteen
+	 *
+	 * @return true if the canteen exists
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public boolean exists(int id) throws SQLException {
+		try (Connection con = database.getDataSource().getConnection();
+				PreparedStatement statement = con.prepareStatement("SELECT 1 FROM mensas WHERE id = ?")) {
+			statement.setInt(1, id);
+			try (ResultSet res = statement.executeQuery()) {
+				return res.next();
+			}
+		}
+	}
+
+	private List<Mensa> find(Connection con, String name, String city) throws SQLException {
+		String query = "SELECT * FROM mensas";
+		if (name != null && city != null) {
+			query += " WHERE city LIKE ? AND name LIKE ?";
+		} else if (city != null) {
+			query += " WHERE city LIKE ?";
+		} else if (name != null) {
+			query += " WHERE name LIKE ?";
+		}
+		try (PreparedStatement statement = con.prepareStatement(query)) {
+			int i = 1;
+			if (city != null) {
+				statement.setString(i++, "%" + city.trim() + "%");
+			}
+			if (name != null) {
+				statement.setString(i, "%" + name.trim() + "%");
+			}
+			try (ResultSet res = statement.executeQuery()) {
+				List<Mensa> mensas = new ArrayList<>();
+				while (res.next()) {
+					mensas.add(new Mensa(res.getInt("id"), res.getString("name"), res.getString("city"),
+							res.getString("address")));
+				}
+				return mensas;
+			}
+		}
+	}
+}
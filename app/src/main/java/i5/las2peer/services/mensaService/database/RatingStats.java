@@ -0,0 +1,23 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.sql.Timestamp;
+
+/**
+ * Aggregated ratings of a dish, as stored in the dish_rating_stats table.
+ *
+ * @param dishId     id of the dish
+ * @param count      number of reviews
+ * @param sum        sum of the stars of all reviews
+ * @param histogram  number of reviews with 1 to 5 stars, index 0 holds the
+ *                   reviews with one star
+ * @param lastReview time of the latest review, may be null
+ */
+public record RatingStats(int dishId, int count, long sum, int[] histogram, Timestamp lastReview) {
+
+	/**
+	 * @return average number of stars, 0 if there are no reviews
+	 */
+	public float average() {
+		return count == 0 ? 0 : (float) sum / count;
+	}
+}
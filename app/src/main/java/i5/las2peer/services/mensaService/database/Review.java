@@ -0,0 +1,32 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.util.Date;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * A review of a dish together with the canteen at which the dish was eaten.
+ *
+ * @param author    author of the review
+ * @param stars     stars given by the author between 1 and 5
+ * @param comment   optional comment
+ * @param timestamp day of the review
+ * @param category  category of the dish
+ * @param mensaName name of the canteen
+ * @param city      city in which the canteen is located
+ */
+public record Review(String author, int stars, String comment, Date timestamp, String category, String mensaName,
+		String city) {
+
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		json.put("author", author);
+		json.put("stars", stars);
+		json.put("comment", comment);
+		json.put("timestamp", timestamp);
+		json.put("category", category);
+		json.put("mensaName", mensaName);
+		json.put("city", city);
+		return json;
+	}
+}
@@ -0,0 +1,291 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Access to the reviews table. Connections are only held for the duration of a
+ * call. Listings and ratings are read from the read replica if there is one.
+ *
+ */
+public class ReviewRepository {
+
+	private static final String INSERT_REVIEW = "INSERT INTO reviews (author,mensaId,dishId,timestamp,stars,comment) VALUES (?,?,?,?,?,?)";
+	// reviews written behind may arrive after newer ones, so the latest review is only moved forward
+	private static final String ADD_TO_STATS = "INSERT INTO dish_rating_stats (dishId, count, sum, stars1, stars2, stars3, stars4, stars5, lastReview) VALUES (?,1,?,?,?,?,?,?,?)"
+			+ " ON DUPLICATE KEY UPDATE count=count+1, sum=sum+VALUES(sum), stars1=stars1+VALUES(stars1), stars2=stars2+VALUES(stars2),"
+			+ " stars3=stars3+VALUES(stars3), stars4=stars4+VALUES(stars4), stars5=stars5+VALUES(stars5),"
+			+ " lastReview=GREATEST(COALESCE(lastReview, VALUES(lastReview)), VALUES(lastReview))";
+
+	private final SQLDatabase database;
+
+	public ReviewRepository(SQLDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 *
+	 * Returns all reviews of a dish.
+	 *
+	 * @param dishId id of the dish
+	 *
+	 * @return the reviews together with the canteen of each review
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public List<Review> findByDish(int dishId) throws SQLException {
+		try (Connection con = database.getReadConnection();
+				PreparedStatement statement = con.prepareStatement(
+						"SELECT author, stars, comment, timestamp , category, mensas.name, mensas.city FROM reviews JOIN mensas ON mensas.id=reviews.mensaId JOIN dishes ON dishes.id=reviews.dishId WHERE dishes.id=?")) {
+			statement.setInt(1, dishId);
+			try (ResultSet res = statement.executeQuery()) {
+				List<Review> reviews = new ArrayList<>();
+				while (res.next()) {
+					reviews.add(new Review(res.getString(1), res.getInt(2), res.getString(3), res.getDate(4),
+							res.getString(5), res.getString(6), res.getString(7)));
+				}
+				return reviews;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Reads the ratings of several dishes from the dish_rating_stats table with
+	 * one query. The cost does not depend on the number of reviews.
+	 *
+	 * @param dishIds ids of the dishes
+	 *
+	 * @return the ratings by dish id, dishes without reviews are missing
+	 *
+	 * @throws SQLException the query failed
+	 *
+	 */
+	public Map<Integer, RatingStats> ratingStats(Collection<Integer> dishIds) throws SQLException {
+		if (dishIds.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		String placeholders = String.join(",", Collections.nCopies(dishIds.size(), "?"));
+		try (Connection con = database.getReadConnection();
+				PreparedStatement statement = con.prepareStatement(
+						"SELECT dishId, count, sum, stars1, stars2, stars3, stars4, stars5, lastReview FROM dish_rating_stats WHERE count > 0 AND dishId IN ("
+								+ placeholders + ")")) {
+			int i = 1;
+			for (int dishId : dishIds) {
+				statement.setInt(i++, dishId);
+			}
+			try (ResultSet res = statement.executeQuery()) {
+				Map<Integer, RatingStats> stats = new HashMap<>();
+				while (res.next()) {
+					int[] histogram = new int[5];
+					for (int star = 0; star < 5; star++) {
+						histogram[star] = res.getInt(4 + star);
+					}
+					stats.put(res.getInt(1), new RatingStats(res.getInt(1), res.getInt(2), res.getLong(3), histogram,
+							res.getTimestamp(9)));
+				}
+				return stats;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Adds a review. The ratings of the dish are updated in the same transaction.
+	 *
+	 * @param author  author of the review
+	 * @param mensaId canteen at which the dish was eaten
+	 * @param dishId  the reviewed dish
+	 * @param stars   stars between 1 and 5
+	 * @param comment optional comment
+	 *
+	 * @return id of the new review or -1 if no id was generated
+	 *
+	 * @throws SQLException the review could not be stored
+	 *
+	 */
+	public int add(String author, int mensaId, int dishId, int stars, String comment) throws SQLException {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		try (Connection con = database.getDataSource().getConnection()) {
+			boolean autoCommit = con.getAutoCommit();
+			con.setAutoCommit(false);
+			try (PreparedStatement insert = con.prepareStatement(INSERT_REVIEW, Statement.RETURN_GENERATED_KEYS);
+					PreparedStatement stats = con.prepareStatement(ADD_TO_STATS)) {
+				setReview(insert, author, mensaId, dishId, stars, comment, now);
+				insert.execute();
+				int id;
+				try (ResultSet keys = insert.getGeneratedKeys()) {
+					id = keys.next() ? keys.getInt(1) : -1;
+				}
+
+				setStats(stats, dishId, stars, now);
+				stats.executeUpdate();
+				con.commit();
+				return id;
+			} catch (SQLException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Adds several reviews with one batch in a single transaction, together with
+	 * the ratings of their dishes.
+	 *
+	 * @param reviews the reviews to add
+	 *
+	 * @throws SQLException the reviews could not be stored, none of them is stored
+	 *
+	 */
+	public void addAll(List<ReviewWriter.PendingReview> reviews) throws SQLException {
+		if (reviews.isEmpty()) {
+			return;
+		}
+		try (Connection con = database.getDataSource().getConnection()) {
+			boolean autoCommit = con.getAutoCommit();
+			con.setAutoCommit(false);
+			try (PreparedStatement insert = con.prepareStatement(INSERT_REVIEW);
+					PreparedStatement stats = con.prepareStatement(ADD_TO_STATS)) {
+				for (ReviewWriter.PendingReview review : reviews) {
+					Timestamp timestamp = new Timestamp(review.createdAt());
+					setReview(insert, review.author(), review.mensaId(), review.dishId(), review.stars(),
+							review.comment(), timestamp);
+					insert.addBatch();
+					setStats(stats, review.dishId(), review.stars(), timestamp);
+					stats.addBatch();
+				}
+				insert.executeBatch();
+				stats.executeBatch();
+				con.commit();
+			} catch (SQLException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	private static void setReview(PreparedStatement statement, String author, int mensaId, int dishId, int stars,
+			String comment, Timestamp timestamp) throws SQLException {
+		statement.setString(1, author);
+		statement.setInt(2, mensaId);
+		statement.setInt(3, dishId);
+		statement.setTimestamp(4, timestamp);
+		statement.setInt(5, stars);
+		statement.setString(6, comment);
+	}
+
+	private static void setStats(PreparedStatement statement, int dishId, int stars, Timestamp timestamp)
+			throws SQLException {
+		statement.setInt(1, dishId);
+		statement.setInt(2, stars);
+		for (int star = 1; star <= 5; star++) {
+			statement.setInt(2 + star, stars == star ? 1 : 0);
+		}
+		statement.setTimestamp(8, timestamp);
+	}
+
+	/**
+	 *
+	 * Deletes a review. The ratings of the dish are updated in the same
+	 * transaction.
+	 *
+	 * @param id id of the review
+	 *
+	 * @throws SQLException the review could not be deleted
+	 *
+	 */
+	public void delete(int id) throws SQLException {
+		try (Connection con = database.getDataSource().getConnection()) {
+			boolean autoCommit = con.getAutoCommit();
+			con.setAutoCommit(false);
+			try (PreparedStatement select = con
+					.prepareStatement("SELECT dishId, stars FROM reviews WHERE id=? FOR UPDATE");
+					PreparedStatement delete = con.prepareStatement("DELETE FROM reviews WHERE id=?");
+					PreparedStatement stats = con.prepareStatement(
+							"UPDATE dish_rating_stats SET count=count-1, sum=sum-?, stars1=stars1-?, stars2=stars2-?, stars3=stars3-?, stars4=stars4-?, stars5=stars5-?,"
+									+ " lastReview=(SELECT MAX(timestamp) FROM reviews WHERE dishId=?) WHERE dishId=?")) {
+				select.setInt(1, id);
+				int dishId;
+				int stars;
+				try (ResultSet res = select.executeQuery()) {
+					if (!res.next()) {
+						con.commit();
+						return;
+					}
+					dishId = res.getInt(1);
+					stars = res.getInt(2);
+				}
+
+				delete.setInt(1, id);
+				delete.executeUpdate();
+
+				stats.setInt(1, stars);
+				for (int star = 1; star <= 5; star++) {
+					stats.setInt(1 + star, stars == star ? 1 : 0);
+				}
+				stats.setInt(7, dishId);
+				stats.setInt(8, dishId);
+				stats.executeUpdate();
+				con.commit();
+			} catch (SQLException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Recomputes the dish_rating_stats table from the reviews in one transaction.
+	 * Only needed if the table got out of sync with the reviews, e.g. after
+	 * reviews were changed directly in the database. Does the same as
+	 * mysql-init-files/migrations/001-dish-rating-stats.sql.
+	 *
+	 * @return number of dishes with reviews
+	 *
+	 * @throws SQLException the ratings could not be recomputed
+	 *
+	 */
+	public int rebuildRatingStats() throws SQLException {
+		try (Connection con = database.getDataSource().getConnection()) {
+			boolean autoCommit = con.getAutoCommit();
+			con.setAutoCommit(false);
+			try (Statement statement = con.createStatement()) {
+				statement.executeUpdate("DELETE FROM dish_rating_stats");
+				int dishes = statement.executeUpdate(
+						"INSERT INTO dish_rating_stats (dishId, count, sum, stars1, stars2, stars3, stars4, stars5, lastReview)"
+								+ " SELECT dishId, COUNT(*), SUM(stars), SUM(CASE WHEN stars=1 THEN 1 ELSE 0 END),"
+								+ " SUM(CASE WHEN stars=2 THEN 1 ELSE 0 END), SUM(CASE WHEN stars=3 THEN 1 ELSE 0 END),"
+								+ " SUM(CASE WHEN stars=4 THEN 1 ELSE 0 END), SUM(CASE WHEN stars=5 THEN 1 ELSE 0 END), MAX(timestamp)"
+								+ " FROM reviews GROUP BY dishId");
+				con.commit();
+				return dishes;
+			} catch (SQLException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(autoCommit);
+			}
+		}
+	}
+}
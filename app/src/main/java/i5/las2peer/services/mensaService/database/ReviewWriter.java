@@ -0,0 +1,379 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+/**
+ *
+ * Writes reviews behind the requests which submitted them. Accepted reviews are
+ * put into a bounded queue, from which a background thread stores them in
+ * batches, each in one transaction. Reviews which do not fit into the queue or
+ * could not be stored because the database is not available are appended to an
+ * overflow file and written once the queue is idle again, so an accepted review
+ * is not lost. After a crash during such a replay, reviews may be stored twice.
+ *
+ */
+public class ReviewWriter {
+
+	private static final long RETRY_MILLIS = 30000;
+	private static final long IDLE_MILLIS = 1000;
+	private static final long STOP_MILLIS = 10000; // time a running batch may take to finish on stop
+
+	private final ReviewRepository repository;
+	private final BlockingQueue<PendingReview> queue;
+	private final int batchSize;
+	private final Path overflowFile;
+	private final Path replayFile;
+	private final Object overflowLock = new Object();
+
+	private Thread thread;
+	private volatile boolean running;
+	private volatile long retryAt; // no writes are attempted before, after the database failed
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong overflowed = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private volatile long lastLatency;
+	private volatile long maxLatency;
+
+	/**
+	 * A review which has been accepted but not yet stored.
+	 *
+	 * @param author    author of the review
+	 * @param mensaId   canteen at which the dish was eaten
+	 * @param dishId    the reviewed dish
+	 * @param stars     stars between 1 and 5
+	 * @param comment   optional comment
+	 * @param createdAt time in ms since epoch at which the review was accepted
+	 */
+	public record PendingReview(String author, int mensaId, int dishId, int stars, String comment, long createdAt) {
+
+		JSONObject toJSON() {
+			JSONObject json = new JSONObject();
+			json.put("author", author);
+			json.put("mensaId", mensaId);
+			json.put("dishId", dishId);
+			json.put("stars", stars);
+			json.put("comment", comment);
+			json.put("createdAt", createdAt);
+			return json;
+		}
+
+		static PendingReview fromJSON(JSONObject json) {
+			return new PendingReview(json.getAsString("author"), json.getAsNumber("mensaId").intValue(),
+					json.getAsNumber("dishId").intValue(), json.getAsNumber("stars").intValue(),
+					json.getAsString("comment"), json.getAsNumber("createdAt").longValue());
+		}
+	}
+
+	/**
+	 *
+	 * @param repository   repository the reviews are stored with
+	 * @param capacity     maximum number of reviews waiting in memory
+	 * @param batchSize    maximum number of reviews stored in one transaction
+	 * @param overflowFile file which takes the reviews that cannot be queued or
+	 *                     stored
+	 *
+	 */
+	public ReviewWriter(ReviewRepository repository, int capacity, int batchSize, Path overflowFile) {
+		this.repository = repository;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.batchSize = batchSize;
+		this.overflowFile = overflowFile;
+		this.replayFile = Paths.get(overflowFile + ".replaying");
+	}
+
+	/**
+	 *
+	 * Accepts a review. It is queued or, if the queue is full, appended to the
+	 * overflow file.
+	 *
+	 * @param review the review
+	 *
+	 * @return false if the review could neither be queued nor written to the
+	 *         overflow file
+	 *
+	 */
+	public boolean submit(PendingReview review) {
+		if (!queue.offer(review)) {
+			try {
+				overflow(List.of(review));
+			} catch (IOException e) {
+				System.out.println("Could not write review to overflow file: " + e.getMessage());
+				return false;
+			}
+		}
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 *
+	 * Starts the background writer. Reviews left over from an interrupted replay
+	 * are moved back to the overflow file first.
+	 *
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		try {
+			synchronized (overflowLock) {
+				if (Files.exists(replayFile)) {
+					appendTo(overflowFile, Files.readAllBytes(replayFile));
+					Files.delete(replayFile);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Could not recover reviews from " + replayFile + ": " + e.getMessage());
+		}
+		running = true;
+		thread = new Thread(this::run, "mensa-review-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 *
+	 * Stops the background writer. A running batch is finished first, reviews
+	 * which have not been stored yet are written to the overflow file and stored
+	 * after the next start. Should be called when the service shuts down, since
+	 * the writer runs on a daemon thread.
+	 *
+	 */
+	public synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join(STOP_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+		List<PendingReview> pending = new ArrayList<>();
+		queue.drainTo(pending);
+		try {
+			overflow(pending);
+		} catch (IOException e) {
+			System.out.println(pending.size() + " reviews could not be saved: " + e.getMessage());
+		}
+	}
+
+	/**
+	 *
+	 * Returns the state of the writer.
+	 *
+	 * @return numbers of accepted, stored and overflowed reviews and the time in ms
+	 *         between accepting and storing a review
+	 *
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("accepted", accepted.get());
+		stats.put("queued", queue.size());
+		stats.put("written", written.get());
+		stats.put("batches", batches.get());
+		stats.put("failedBatches", failedBatches.get());
+		stats.put("rejected", rejected.get());
+		stats.put("overflowed", overflowed.get());
+		stats.put("replayed", replayed.get());
+		stats.put("overflowPending", Files.exists(overflowFile));
+		JSONObject latency = new JSONObject();
+		latency.put("lastMillis", lastLatency);
+		latency.put("maxMillis", maxLatency);
+		latency.put("averageMillis", written.get() > 0 ? totalLatency.get() / written.get() : 0);
+		stats.put("flushLatency", latency);
+		return stats;
+	}
+
+	private void run() {
+		List<PendingReview> batch = new ArrayList<>(batchSize);
+		while (running) {
+			try {
+				PendingReview first = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					replayOverflow();
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1); // everything that arrived during the last flush
+				write(batch);
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				System.out.println(batch.size() + " reviews could not be saved: " + e.getMessage());
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Stores a batch. If the batch fails, the reviews are stored one by one, so
+	 * that a single invalid review does not hold back the others. Reviews which
+	 * violate a constraint, e.g. of an unknown dish, are dropped. Reviews which
+	 * could not be stored for other reasons go to the overflow file. Returns the
+	 * number of reviews stored
+	 */
+	private int write(List<PendingReview> batch) throws IOException {
+		if (System.currentTimeMillis() < retryAt) {
+			overflow(batch);
+			return 0;
+		}
+		try {
+			repository.addAll(batch);
+			stored(batch);
+			return batch.size();
+		} catch (SQLException e) {
+			failedBatches.incrementAndGet();
+		}
+		int stored = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			PendingReview review = batch.get(i);
+			try {
+				repository.addAll(List.of(review));
+				stored(List.of(review));
+				stored++;
+			} catch (SQLException e) {
+				if (isConstraintViolation(e)) {
+					rejected.incrementAndGet();
+					System.out.println("Dropped review of dish " + review.dishId() + ": " + e.getMessage());
+					continue;
+				}
+				System.out.println("Could not save reviews, retrying in " + RETRY_MILLIS + "ms: " + e.getMessage());
+				retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+				overflow(batch.subList(i, batch.size()));
+				return stored;
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Batches report the failed statement as the cause or next exception of a
+	 * BatchUpdateException, so the whole chain is checked for SQL state class 23
+	 */
+	private static boolean isConstraintViolation(SQLException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SQLIntegrityConstraintViolationException) {
+				return true;
+			}
+			if (t instanceof SQLException sql) {
+				if (sql.getSQLState() != null && sql.getSQLState().startsWith("23")) {
+					return true;
+				}
+				if (sql.getNextException() != null && isConstraintViolation(sql.getNextException())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void stored(List<PendingReview> reviews) {
+		long now = System.currentTimeMillis();
+		batches.incrementAndGet();
+		for (PendingReview review : reviews) {
+			long latency = now - review.createdAt();
+			totalLatency.addAndGet(latency);
+			lastLatency = latency;
+			maxLatency = Math.max(maxLatency, latency);
+		}
+		written.addAndGet(reviews.size());
+	}
+
+	/**
+	 * Stores the reviews of the overflow file while the queue is idle. Reviews
+	 * which are appended meanwhile are kept for the next replay. A replay file left
+	 * by a replay which failed is replayed first and never replaced
+	 */
+	void replayOverflow() throws IOException {
+		if (System.currentTimeMillis() < retryAt) {
+			return;
+		}
+		synchronized (overflowLock) {
+			if (!Files.exists(replayFile)) {
+				if (!Files.exists(overflowFile)) {
+					return;
+				}
+				Files.move(overflowFile, replayFile);
+			}
+		}
+		List<PendingReview> batch = new ArrayList<>(batchSize);
+		try (BufferedReader reader = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank()) {
+					continue;
+				}
+				try {
+					batch.add(PendingReview.fromJSON((JSONObject) JSONValue.parseWithException(line)));
+				} catch (Exception e) {
+					rejected.incrementAndGet(); // e.g. a line cut off by a crash
+					continue;
+				}
+				if (batch.size() == batchSize) {
+					replayed.addAndGet(write(batch));
+					batch.clear();
+				}
+			}
+			replayed.addAndGet(write(batch));
+		}
+		Files.delete(replayFile);
+	}
+
+	private void overflow(List<PendingReview> reviews) throws IOException {
+		if (reviews.isEmpty()) {
+			return;
+		}
+		StringBuilder lines = new StringBuilder();
+		for (PendingReview review : reviews) {
+			lines.append(review.toJSON().toJSONString()).append('\n');
+		}
+		synchronized (overflowLock) {
+			appendTo(overflowFile, lines.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		overflowed.addAndGet(reviews.size());
+	}
+
+	/** Appends to a file and waits until the data has reached the disk */
+	private static void appendTo(Path file, byte[] data) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND)) {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+	}
+}
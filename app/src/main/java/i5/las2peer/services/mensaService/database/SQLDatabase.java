@@ -1,10 +1,16 @@
 package i5.las2peer.services.mensaService.database;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 
+import net.minidev.json.JSONObject;
+
 /**
  *
  * Stores the database credentials and provides access to query execution. The
@@ -15,7 +21,25 @@ import org.apache.commons.dbcp2.BasicDataSource;
  */
 public class SQLDatabase {
 
+	private static final long MAX_WAIT_MILLIS = 10000;
+	private static final long REPLICA_RETRY_MILLIS = 30000;
+	private static final int REPLICA_CONNECT_TIMEOUT_MILLIS = 2000;
+	private static final int REPLICA_SOCKET_TIMEOUT_MILLIS = 30000;
+	private static final int REPLICA_VALIDATION_TIMEOUT_SECONDS = 2;
+	private static final Pattern BLOCK_COMMENT = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
+	private static final Pattern LINE_COMMENT = Pattern.compile("--[^\\n]*");
+	private static final Pattern SELECT_DATABASE = Pattern.compile("(CREATE\\s+DATABASE|USE)\\b",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern INDEX_TYPE = Pattern.compile("\\s+USING\\s+BTREE", Pattern.CASE_INSENSITIVE);
+	private static final Pattern TABLE_OPTIONS = Pattern.compile("\\)\\s*ENGINE\\s*=.*$",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
 	private BasicDataSource dataSource;
+	private BasicDataSource replica; // null if all queries go to the primary
+	private String replicaHost;
+	private volatile long replicaRetryAt;
+	private final AtomicLong replicaReads = new AtomicLong();
+	private final AtomicLong replicaFallbacks = new AtomicLong();
 
 	private SQLDatabaseType jdbcInfo = null;
 	private String username = null;
@@ -46,9 +70,67 @@ public class SQLDatabase {
 		this.port = port;
 		this.database = database;
 
+		dataSource = createDataSource(host, port);
+	}
+
+	/**
+	 *
+	 * Adds a read replica of the database with its own connection pool. Read-only
+	 * queries which may return slightly outdated results are then sent to the
+	 * replica, see {@link #getReadConnection()}. The replica uses the same
+	 * credentials and database name as the primary. Connecting to the replica and
+	 * validating its connections time out after a few seconds, so that an
+	 * unreachable replica makes reads fall back to the primary instead of stalling
+	 * them.
+	 *
+	 * @param host host of the replica
+	 * @param port port of the replica
+	 *
+	 */
+	public void setReadReplica(String host, int port) {
+		replica = createDataSource(host, port);
+		if (!jdbcInfo.isEmbedded()) {
+			// BasicDataSource does not support a login timeout, the driver bounds the
+			// connect and every read instead
+			replica.addConnectionProperty("connectTimeout", String.valueOf(REPLICA_CONNECT_TIMEOUT_MILLIS));
+			replica.addConnectionProperty("socketTimeout", String.valueOf(REPLICA_SOCKET_TIMEOUT_MILLIS));
+		}
+		replica.setValidationQueryTimeout(REPLICA_VALIDATION_TIMEOUT_SECONDS);
+		replicaHost = host + ":" + port;
+	}
+
+	/**
+	 *
+	 * Returns a connection for read-only queries. If there is a replica, the
+	 * connection is taken from its pool. If no connection to the replica can be
+	 * established, the primary is used instead and the replica is only tried again
+	 * after {@value #REPLICA_RETRY_MILLIS} ms.
+	 *
+	 * @return a connection, which must not be used for writes
+	 *
+	 * @throws SQLException no connection to the primary could be established
+	 *
+	 */
+	public Connection getReadConnection() throws SQLException {
+		if (replica != null && System.currentTimeMillis() >= replicaRetryAt) {
+			try {
+				Connection con = replica.getConnection();
+				replicaReads.incrementAndGet();
+				return con;
+			} catch (SQLException e) {
+				replicaRetryAt = System.currentTimeMillis() + REPLICA_RETRY_MILLIS;
+				System.out.println("Read replica " + replicaHost + " not available, using the primary: " + e.getMessage());
+			}
+		}
+		if (replica != null) {
+			replicaFallbacks.incrementAndGet();
+		}
+		return dataSource.getConnection();
+	}
+
+	private BasicDataSource createDataSource(String host, int port) {
 		BasicDataSource ds = new BasicDataSource();
-		String urlPrefix = jdbcInfo.getURLPrefix(this.host, this.database, this.port)
-				+ "?autoReconnect=true&useSSL=false&serverTimezone=UTC";
+		String urlPrefix = jdbcInfo.getURLPrefix(host, this.database, port) + jdbcInfo.getURLOptions();
 		ds.setUrl(urlPrefix);
 		ds.setUsername(username);
 		ds.setPassword(password);
@@ -59,9 +141,9 @@ public class SQLDatabase {
 		ds.setRemoveAbandonedOnMaintenance(true);
 		ds.setMaxOpenPreparedStatements(100);
 		ds.setMaxConnLifetimeMillis(1000 * 60 * 60);
-
-		dataSource = ds;
-		setValidationQuery();
+		ds.setMaxWaitMillis(MAX_WAIT_MILLIS); // fail instead of stalling forever if the pool is exhausted
+		setValidationQuery(ds);
+		return ds;
 	}
 
 	/**
@@ -116,10 +198,94 @@ public class SQLDatabase {
 		return dataSource;
 	}
 
-	private void setValidationQuery() {
+	/**
+	 *
+	 * Returns the state of the connection pools.
+	 *
+	 * @return active, idle and maximum number of connections, and the reads
+	 *         served by the replica
+	 *
+	 */
+	public JSONObject getPoolStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("active", dataSource.getNumActive());
+		stats.put("idle", dataSource.getNumIdle());
+		stats.put("maxTotal", dataSource.getMaxTotal());
+		stats.put("maxWaitMillis", dataSource.getMaxWaitMillis());
+		stats.put("saturation", dataSource.getMaxTotal() > 0 ? (double) dataSource.getNumActive() / dataSource.getMaxTotal() : 0);
+		if (replica != null) {
+			JSONObject replicaStats = new JSONObject();
+			replicaStats.put("host", replicaHost);
+			replicaStats.put("active", replica.getNumActive());
+			replicaStats.put("idle", replica.getNumIdle());
+			replicaStats.put("healthy", System.currentTimeMillis() >= replicaRetryAt);
+			replicaStats.put("reads", replicaReads.get());
+			replicaStats.put("fallbacks", replicaFallbacks.get());
+			stats.put("replica", replicaStats);
+		}
+		return stats;
+	}
+
+	/**
+	 *
+	 * Checks whether a table exists in the database of the connection.
+	 *
+	 * @param table name of the table
+	 *
+	 * @return true if the table exists
+	 *
+	 * @throws SQLException the database could not be queried
+	 *
+	 */
+	public boolean hasTable(String table) throws SQLException {
+		try (Connection con = dataSource.getConnection();
+				ResultSet res = con.getMetaData().getTables(con.getCatalog(), null, table, null)) {
+			return res.next();
+		}
+	}
+
+	/**
+	 *
+	 * Executes a schema script like mysql-init-files/initDB.sql statement by
+	 * statement. Statements creating or selecting a database are skipped, since
+	 * the database is given by the connection. For H2, index types and table
+	 * options which only MySQL understands are removed.
+	 *
+	 * @param script the SQL statements separated by semicolons
+	 *
+	 * @return number of statements executed
+	 *
+	 * @throws SQLException a statement failed
+	 *
+	 */
+	public int applySchema(String script) throws SQLException {
+		script = BLOCK_COMMENT.matcher(script).replaceAll("");
+		script = LINE_COMMENT.matcher(script).replaceAll("");
+		int executed = 0;
+		try (Connection con = dataSource.getConnection(); Statement statement = con.createStatement()) {
+			for (String sql : script.split(";")) {
+				sql = sql.trim();
+				if (sql.isEmpty() || SELECT_DATABASE.matcher(sql).lookingAt()) {
+					continue;
+				}
+				if (jdbcInfo == SQLDatabaseType.H2) {
+					sql = INDEX_TYPE.matcher(sql).replaceAll("");
+					sql = TABLE_OPTIONS.matcher(sql).replaceAll(")");
+				}
+				statement.execute(sql);
+				executed++;
+			}
+		}
+		return executed;
+	}
+
+	private void setValidationQuery(BasicDataSource dataSource) {
 		switch (jdbcInfo.getCode()) {
 			case 1:
 				dataSource.setValidationQuery("SELECT 1;");
+				break;
+			case 2:
+				dataSource.setValidationQuery("SELECT 1");
 		}
 	}
 
@@ -5,7 +5,7 @@ package i5.las2peer.services.mensaService.database;
  * Enumeration class that provides the right drivers according to the database
  * type. The original code was taken from the QueryVisualizationService.
  *
- * This implementation currently only supports MySQL.
+ * This implementation supports MySQL and an embedded H2 database.
  *
  */
 public enum SQLDatabaseType {
@@ -13,7 +13,14 @@ public enum SQLDatabaseType {
 	/**
 	 * A MySQL database. Works with the "mysqlConnectorJava-8.0.13.jar" archive.
 	 */
-	MySQL(1, "com.mysql.cj.jdbc.Driver", "mysql");
+	MySQL(1, "com.mysql.cj.jdbc.Driver", "mysql"),
+
+	/**
+	 * An embedded H2 database in MySQL compatibility mode, which needs no database
+	 * server, e.g. for load tests. The database name is the H2 database, e.g.
+	 * "mem:mensa" or "./etc/mensa", host and port are ignored.
+	 */
+	H2(2, "org.h2.Driver", "h2");
 
 	private final int code;
 	private final String driver;
@@ -49,6 +56,8 @@ public enum SQLDatabaseType {
 		switch (code) {
 			case 1:
 				return SQLDatabaseType.MySQL;
+			case 2:
+				return SQLDatabaseType.H2;
 		}
 		return null;
 	}
@@ -65,6 +74,23 @@ public enum SQLDatabaseType {
 		return driver;
 	}
 
+	/**
+	 *
+	 * Returns the fetch size which makes the driver pass the rows of a result on
+	 * while they are received, instead of reading the whole result into memory
+	 * first.
+	 *
+	 * @return a fetch size
+	 *
+	 */
+	public int getStreamingFetchSize() {
+		switch (code) {
+			case 1:
+				return Integer.MIN_VALUE; // row by row streaming of MySQL Connector/J
+		}
+		return 0;
+	}
+
 	/**
 	 *
 	 * Constructs a URL prefix that can be used for addressing a database.
@@ -77,7 +103,42 @@ public enum SQLDatabaseType {
 	 *
 	 */
 	public String getURLPrefix(String host, String database, int port) {
+		switch (code) {
+			case 2:
+				if (!database.contains(":") && !database.startsWith(".") && !database.startsWith("/")
+						&& !database.startsWith("~")) {
+					database = "./" + database; // H2 does not accept implicitly relative paths
+				}
+				return "jdbc:" + jdbc + ":" + database;
+		}
 		return "jdbc:" + jdbc + "://" + host + ":" + port + "/" + database;
 	}
 
-}
+	/**
+	 *
+	 * Returns the options appended to the URL of the database.
+	 *
+	 * @return the options including the leading separator
+	 *
+	 */
+	public String getURLOptions() {
+		switch (code) {
+			case 2:
+				return ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+		}
+		return "?autoReconnect=true&useSSL=false&serverTimezone=UTC&rewriteBatchedStatements=true";
+	}
+
+	/**
+	 *
+	 * Returns whether the database runs inside the service. The schema of an
+	 * embedded database is created by the service.
+	 *
+	 * @return true for an embedded database
+	 *
+	 */
+	public boolean isEmbedded() {
+		return code == 2;
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,18 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+/**
+ * One page of the paginated canteen list of the OpenMensa API.
+ * The canteens themselves are passed on one by one while the page is parsed
+ * @param page number of the page, starting at 1
+ * @param totalPages number of pages as reported by the x-total-pages header
+ * @param canteens number of canteens on this page, 0 if the page has not been modified
+ * @param notModified true if the page has not changed since it was last fetched and no canteens were passed on
+ * @param latencyMillis time in ms it took to fetch and parse the page
+ */
+public record CanteenPage(
+  int page,
+  int totalPages,
+  int canteens,
+  boolean notModified,
+  long latencyMillis
+) {}
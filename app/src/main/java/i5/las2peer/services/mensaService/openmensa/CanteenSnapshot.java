@@ -0,0 +1,195 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import i5.las2peer.services.mensaService.database.SQLDatabase;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * A gzip compressed json file containing all canteens of the mensas table.
+ * It is written after a synchronization and loaded into an empty table when the service starts,
+ * so that the canteens are available without waiting for the OpenMensa API.
+ * The snapshot is only rewritten when the canteens changed, so the time of the last synchronization
+ * is recorded in a separate file next to it.
+ */
+public class CanteenSnapshot {
+
+  private final Path file;
+  private final Path syncedFile;
+  private final SQLDatabase database;
+
+  /**
+   * @param file location of the snapshot
+   * @param database database containing the mensas table
+   */
+  public CanteenSnapshot(Path file, SQLDatabase database) {
+    this.file = file;
+    this.syncedFile = Paths.get(file + ".synced");
+    this.database = database;
+  }
+
+  public boolean exists() {
+    return Files.isRegularFile(file);
+  }
+
+  /**
+   * @return time in ms since the last successful synchronization, or -1 if none has been recorded
+   */
+  public long syncAgeMillis() {
+    try {
+      long syncedAt = Long.parseLong(Files.readString(syncedFile).trim());
+      return System.currentTimeMillis() - syncedAt;
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Records that the canteens have just been synchronized, whether they changed or not
+   */
+  public void markSynced() throws IOException {
+    Path parent = syncedFile.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Path tmp = Files.createTempFile(parent, "mensas", ".tmp");
+    Files.writeString(tmp, String.valueOf(System.currentTimeMillis()));
+    Files.move(tmp, syncedFile, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Writes all canteens of the mensas table to the snapshot. The previous snapshot is replaced once the new one is complete
+   * @return number of canteens written
+   */
+  public int export() throws IOException, SQLException {
+    Path parent = file.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Path tmp = Files.createTempFile(parent, "mensas", ".tmp");
+    int canteens = 0;
+    try (
+      Connection con = database.getDataSource().getConnection();
+      PreparedStatement statement = con.prepareStatement(
+        "SELECT id, name, city, address FROM mensas"
+      );
+      ResultSet res = statement.executeQuery();
+      Writer out = new OutputStreamWriter(
+        new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))),
+        StandardCharsets.UTF_8
+      )
+    ) {
+      out.write('[');
+      while (res.next()) {
+        JSONObject canteen = new JSONObject();
+        canteen.put("id", res.getInt("id"));
+        canteen.put("name", res.getString("name"));
+        canteen.put("city", res.getString("city"));
+        canteen.put("address", res.getString("address"));
+        if (canteens++ > 0) {
+          out.write(',');
+        }
+        canteen.writeJSONString(out);
+      }
+      out.write(']');
+    } catch (IOException | SQLException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    return canteens;
+  }
+
+  /**
+   * Loads the snapshot into the mensas table if the table is empty.
+   * A persistent database only has an empty table on its first start, the embedded database whenever its file is new
+   * @param batchSize number of canteens inserted in one batch
+   * @return number of canteens loaded, 0 if the table already contains canteens or there is no snapshot
+   */
+  public int importIfEmpty(int batchSize) throws IOException, SQLException {
+    if (!exists()) {
+      return 0;
+    }
+    try (Connection con = database.getDataSource().getConnection()) {
+      try (
+        PreparedStatement statement = con.prepareStatement(
+          "SELECT 1 FROM mensas LIMIT 1"
+        );
+        ResultSet res = statement.executeQuery()
+      ) {
+        if (res.next()) {
+          return 0;
+        }
+      }
+
+      boolean autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      try (
+        PreparedStatement statement = con.prepareStatement(
+          "INSERT IGNORE INTO mensas VALUES(?,?,?,?)"
+        );
+        InputStream in = new GZIPInputStream(
+          new BufferedInputStream(Files.newInputStream(file))
+        )
+      ) {
+        List<SQLException> errors = new ArrayList<>(1);
+        int[] pending = { 0 };
+        int canteens = new JSONParser(JSONParser.MODE_PERMISSIVE)
+          .parse(
+            in,
+            new CanteenStreamReader(
+              canteen -> {
+                if (!errors.isEmpty()) {
+                  return;
+                }
+                try {
+                  statement.setInt(1, Integer.parseInt(canteen.getAsString("id")));
+                  statement.setString(2, canteen.getAsString("name"));
+                  statement.setString(3, canteen.getAsString("city"));
+                  statement.setString(4, canteen.getAsString("address"));
+                  statement.addBatch();
+                  if (++pending[0] == batchSize) {
+                    statement.executeBatch();
+                    pending[0] = 0;
+                  }
+                } catch (SQLException e) {
+                  errors.add(e);
+                }
+              }
+            )
+          );
+        if (!errors.isEmpty()) {
+          throw errors.get(0);
+        }
+        if (pending[0] > 0) {
+          statement.executeBatch();
+        }
+        con.commit();
+        return canteens;
+      } catch (ParseException e) {
+        con.rollback();
+        throw new IOException("Could not parse the canteen snapshot " + file, e);
+      } catch (IOException | SQLException e) {
+        con.rollback();
+        throw e;
+      } finally {
+        con.setAutoCommit(autoCommit);
+      }
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import java.util.function.Consumer;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import net.minidev.json.writer.JsonReaderI;
+
+/**
+ * Reads a json array of canteens and passes each canteen on as soon as it has been parsed,
+ * instead of collecting the whole array. Only the canteen currently being parsed is held in memory
+ */
+class CanteenStreamReader extends JsonReaderI<Integer> {
+
+  private final Consumer<JSONObject> consumer;
+  private int count = 0;
+
+  /**
+   * @param consumer receives the canteens in the order of the array
+   */
+  CanteenStreamReader(Consumer<JSONObject> consumer) {
+    super(JSONValue.defaultReader);
+    this.consumer = consumer;
+  }
+
+  @Override
+  public JsonReaderI<?> startObject(String key) {
+    return base.DEFAULT; // each canteen is read into a JSONObject
+  }
+
+  @Override
+  public Object createArray() {
+    return this; // the elements are not kept, so no list is needed
+  }
+
+  @Override
+  public void addValue(Object current, Object value) {
+    if (value instanceof JSONObject) {
+      consumer.accept((JSONObject) value);
+      count++;
+    }
+  }
+
+  @Override
+  public Integer convert(Object current) {
+    return count;
+  }
+}
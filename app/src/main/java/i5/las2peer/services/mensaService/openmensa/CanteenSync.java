@@ -0,0 +1,448 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import i5.las2peer.services.mensaService.database.SQLDatabase;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import net.minidev.json.JSONObject;
+
+/**
+ * Synchronizes the canteens of the OpenMensa API with the mensas table.
+ * The pages of the canteen list are fetched and parsed concurrently while the canteens
+ * which have already been received are written to the database in batches.
+ * Received canteens are compared with a fingerprint of the table, so that only new and changed
+ * canteens are written and canteens which are no longer listed are removed.
+ * Pages which have not been modified since the last synchronization are skipped.
+ */
+public class CanteenSync {
+
+  private static final String UPSERT =
+    "INSERT INTO mensas VALUES(?,?,?,?) ON DUPLICATE KEY UPDATE name=VALUES(name), city=VALUES(city), address=VALUES(address)";
+  private static final String DELETE =
+    "DELETE FROM mensas WHERE id=? AND NOT EXISTS (SELECT 1 FROM dishes WHERE mensaId=?) AND NOT EXISTS (SELECT 1 FROM reviews WHERE mensaId=?)";
+
+  private final OpenMensaClient client;
+  private final SQLDatabase database;
+  private final int concurrency;
+  private final int batchSize;
+  private final Map<Integer, List<Integer>> pageIds = new ConcurrentHashMap<>(); // canteens on each page in the last synchronization
+
+  /**
+   * @param client client used to fetch the canteen pages
+   * @param database database containing the mensas table
+   * @param concurrency maximum number of pages fetched at the same time
+   * @param batchSize number of canteens written to the database in one batch
+   */
+  public CanteenSync(
+    OpenMensaClient client,
+    SQLDatabase database,
+    int concurrency,
+    int batchSize
+  ) {
+    this.client = client;
+    this.database = database;
+    this.concurrency = Math.max(1, concurrency);
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Fetches all canteen pages and writes the changed canteens to the database.
+   * Canteens are passed from the parser to the writer one by one through a bounded queue,
+   * so that memory use does not depend on the page size and writing overlaps with reading.
+   * Canteens are only removed if every page has been received, and only if no dishes or reviews refer to them
+   * @return statistics of the synchronization
+   * @throws IOException the first page could not be fetched or read
+   * @throws SQLException the canteens could not be written to the database
+   */
+  public Result run() throws IOException, SQLException {
+    long start = System.currentTimeMillis();
+    BlockingQueue<JSONObject> received = new LinkedBlockingQueue<>(
+      batchSize * 2
+    );
+    Map<Integer, Long> pageLatencies = new ConcurrentHashMap<>();
+    AtomicInteger failedPages = new AtomicInteger();
+    AtomicInteger notModifiedPages = new AtomicInteger();
+    AtomicInteger totalPages = new AtomicInteger(1);
+    AtomicInteger pendingPages = new AtomicInteger(1); // pages which are still being fetched
+    AtomicInteger fetchedPages = new AtomicInteger(); // pages which have been read completely
+    AtomicReference<IOException> firstPageError = new AtomicReference<>();
+    Set<Integer> listed = ConcurrentHashMap.newKeySet(); // all canteens currently listed by the api
+    AtomicInteger unknownPages = new AtomicInteger(); // unchanged pages for which the canteens are not known
+    Map<Integer, Integer> fingerprint = readFingerprint();
+
+    ExecutorService fetchers = Executors.newFixedThreadPool(
+      concurrency,
+      r -> {
+        Thread t = new Thread(r, "mensa-sync-fetch");
+        t.setDaemon(true);
+        return t;
+      }
+    );
+    // the first page tells how many pages there are, the remaining pages are fetched concurrently
+    fetchers.execute(
+      () -> {
+        try {
+          CanteenPage first = fetchPage(1, received, pageLatencies, listed);
+          countUnchanged(first, notModifiedPages, unknownPages);
+          fetchedPages.incrementAndGet();
+          totalPages.set(Math.max(1, first.totalPages()));
+          pendingPages.addAndGet(totalPages.get() - 1);
+          for (int page = 2; page <= totalPages.get(); page++) {
+            final int p = page;
+            fetchers.execute(
+              () -> {
+                try {
+                  CanteenPage canteenPage = fetchPage(
+                    p,
+                    received,
+                    pageLatencies,
+                    listed
+                  );
+                  countUnchanged(canteenPage, notModifiedPages, unknownPages);
+                  fetchedPages.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                  System.out.println(
+                    "Could not fetch canteen page " + p + ": " + e.getMessage()
+                  );
+                  failedPages.incrementAndGet();
+                } finally {
+                  pendingPages.decrementAndGet();
+                }
+              }
+            );
+          }
+        } catch (IOException e) {
+          firstPageError.set(e);
+        } catch (RuntimeException e) {
+          firstPageError.set(
+            new IOException("Could not fetch canteen page 1: " + e.getMessage(), e)
+          );
+        } finally {
+          pendingPages.decrementAndGet();
+        }
+      }
+    );
+
+    Changes changes = new Changes();
+    try (Connection con = database.getDataSource().getConnection()) {
+      List<JSONObject> batch = new ArrayList<>(batchSize);
+      // write while the pages are still being fetched
+      while (pendingPages.get() > 0 || !received.isEmpty()) {
+        JSONObject canteen = received.poll(100, TimeUnit.MILLISECONDS);
+        if (canteen != null) {
+          batch.add(canteen);
+          received.drainTo(batch, batchSize - batch.size());
+        }
+        if (
+          batch.size() >= batchSize ||
+          (!batch.isEmpty() && pendingPages.get() == 0)
+        ) {
+          writeBatch(batch, con, fingerprint, changes);
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        writeBatch(batch, con, fingerprint, changes);
+      }
+      // any page which has not been read completely, for whatever reason, keeps all canteens
+      if (
+        firstPageError.get() == null &&
+        fetchedPages.get() == totalPages.get() &&
+        unknownPages.get() == 0
+      ) {
+        fingerprint.keySet().removeAll(listed);
+        changes.removed = delete(fingerprint.keySet(), con);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Canteen synchronization was interrupted");
+    } finally {
+      fetchers.shutdownNow();
+    }
+    if (firstPageError.get() != null) {
+      throw firstPageError.get();
+    }
+
+    return new Result(
+      System.currentTimeMillis() - start,
+      totalPages.get(),
+      failedPages.get(),
+      notModifiedPages.get(),
+      changes.received,
+      changes.inserted,
+      changes.updated,
+      changes.removed,
+      pageLatencies
+    );
+  }
+
+  /**
+   * Fetches one page and puts its canteens into the queue as they are parsed.
+   * Blocks while the queue is full, so that reading does not get too far ahead of writing
+   * @param listed collects the ids of the canteens on the page
+   * @throws IOException the page could not be fetched or contains a canteen without a valid id
+   */
+  private CanteenPage fetchPage(
+    int page,
+    BlockingQueue<JSONObject> queue,
+    Map<Integer, Long> pageLatencies,
+    Set<Integer> listed
+  )
+    throws IOException {
+    CanteenPage canteenPage;
+    List<Integer> ids = new ArrayList<>();
+    try {
+      canteenPage =
+        client.fetchCanteenPage(
+          page,
+          canteen -> {
+            try {
+              ids.add(Integer.parseInt(canteen.getAsString("id")));
+              queue.put(canteen);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new IllegalStateException("Canteen synchronization was interrupted");
+            }
+          }
+        );
+    } catch (IllegalStateException e) {
+      throw new IOException(e.getMessage(), e);
+    } catch (RuntimeException e) {
+      throw new IOException("Could not read canteen page " + page + ": " + e, e);
+    }
+    pageLatencies.put(page, canteenPage.latencyMillis());
+    if (!canteenPage.notModified()) {
+      pageIds.put(page, ids);
+    }
+    listed.addAll(pageIds.getOrDefault(page, List.of()));
+    return canteenPage;
+  }
+
+  private void countUnchanged(
+    CanteenPage page,
+    AtomicInteger notModifiedPages,
+    AtomicInteger unknownPages
+  ) {
+    if (page.notModified()) {
+      notModifiedPages.incrementAndGet();
+      if (!pageIds.containsKey(page.page())) {
+        unknownPages.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Reads the canteens currently stored in the database
+   * @return hash of name, city and address of each canteen by id
+   */
+  private Map<Integer, Integer> readFingerprint() throws SQLException {
+    Map<Integer, Integer> fingerprint = new HashMap<>();
+    try (
+      Connection con = database.getDataSource().getConnection();
+      PreparedStatement statement = con.prepareStatement(
+        "SELECT id, name, city, address FROM mensas"
+      );
+      ResultSet res = statement.executeQuery()
+    ) {
+      while (res.next()) {
+        fingerprint.put(
+          res.getInt("id"),
+          hash(res.getString("name"), res.getString("city"), res.getString("address"))
+        );
+      }
+    }
+    return fingerprint;
+  }
+
+  private static int hash(String name, String city, String address) {
+    return Objects.hash(name, city, address);
+  }
+
+  /**
+   * Writes the new and changed canteens of a batch in one transaction.
+   * The fingerprint is updated with the written canteens
+   */
+  private void writeBatch(
+    List<JSONObject> batch,
+    Connection con,
+    Map<Integer, Integer> fingerprint,
+    Changes changes
+  )
+    throws SQLException {
+    changes.received += batch.size();
+    List<JSONObject> changed = new ArrayList<>();
+    int inserted = 0;
+    for (JSONObject obj : batch) {
+      int id = Integer.parseInt(obj.getAsString("id"));
+      Integer stored = fingerprint.get(id);
+      int current = hash(
+        obj.getAsString("name"),
+        obj.getAsString("city"),
+        obj.getAsString("address")
+      );
+      if (stored == null || stored != current) {
+        changed.add(obj);
+        if (stored == null) {
+          inserted++;
+        }
+      }
+    }
+    if (changed.isEmpty()) {
+      return;
+    }
+
+    boolean autoCommit = con.getAutoCommit();
+    con.setAutoCommit(false);
+    try (PreparedStatement statement = con.prepareStatement(UPSERT)) {
+      for (JSONObject obj : changed) {
+        statement.setInt(1, Integer.parseInt(obj.getAsString("id")));
+        statement.setString(2, obj.getAsString("name"));
+        statement.setString(3, obj.getAsString("city"));
+        statement.setString(4, obj.getAsString("address"));
+        statement.addBatch();
+      }
+      statement.executeBatch();
+      con.commit();
+    } catch (SQLException e) {
+      con.rollback();
+      throw e;
+    } finally {
+      con.setAutoCommit(autoCommit);
+    }
+    for (JSONObject obj : changed) {
+      fingerprint.put(
+        Integer.parseInt(obj.getAsString("id")),
+        hash(obj.getAsString("name"), obj.getAsString("city"), obj.getAsString("address"))
+      );
+    }
+    changes.inserted += inserted;
+    changes.updated += changed.size() - inserted;
+  }
+
+  /**
+   * Removes canteens in batches. Canteens which are referenced by dishes or reviews are kept
+   * @return number of removed canteens
+   */
+  private int delete(Set<Integer> ids, Connection con) throws SQLException {
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    int removed = 0;
+    boolean autoCommit = con.getAutoCommit();
+    con.setAutoCommit(false);
+    try (PreparedStatement statement = con.prepareStatement(DELETE)) {
+      int pending = 0;
+      for (int id : ids) {
+        statement.setInt(1, id);
+        statement.setInt(2, id);
+        statement.setInt(3, id);
+        statement.addBatch();
+        if (++pending == batchSize) {
+          removed += count(statement.executeBatch());
+          pending = 0;
+        }
+      }
+      if (pending > 0) {
+        removed += count(statement.executeBatch());
+      }
+      con.commit();
+      return removed;
+    } catch (SQLException e) {
+      con.rollback();
+      throw e;
+    } finally {
+      con.setAutoCommit(autoCommit);
+    }
+  }
+
+  private static int count(int[] updateCounts) {
+    int rows = 0;
+    for (int count : updateCounts) {
+      if (count > 0) {
+        rows += count;
+      }
+    }
+    return rows;
+  }
+
+  /** Counts the changes of one synchronization, only used by the writer */
+  private static class Changes {
+
+    int received;
+    int inserted;
+    int updated;
+    int removed;
+  }
+
+  /**
+   * Statistics of a synchronization
+   * @param durationMillis total time in ms
+   * @param pages number of pages reported by the api
+   * @param failedPages number of pages that could not be fetched
+   * @param notModifiedPages number of pages that have not changed since the last synchronization
+   * @param canteens number of canteens received
+   * @param inserted number of new canteens
+   * @param updated number of canteens whose name, city or address changed
+   * @param removed number of canteens which are no longer listed and have been removed
+   * @param pageLatencies time in ms to fetch each page
+   */
+  public record Result(
+    long durationMillis,
+    int pages,
+    int failedPages,
+    int notModifiedPages,
+    int canteens,
+    int inserted,
+    int updated,
+    int removed,
+    Map<Integer, Long> pageLatencies
+  ) {
+    public JSONObject toJSON() {
+      JSONObject json = new JSONObject();
+      json.put("durationMillis", durationMillis);
+      json.put("pages", pages);
+      json.put("failedPages", failedPages);
+      json.put("notModifiedPages", notModifiedPages);
+      json.put("canteens", canteens);
+      json.put("inserted", inserted);
+      json.put("updated", updated);
+      json.put("removed", removed);
+      JSONObject latency = new JSONObject();
+      latency.put(
+        "min",
+        pageLatencies.values().stream().mapToLong(Long::longValue).min().orElse(0)
+      );
+      latency.put(
+        "avg",
+        pageLatencies
+          .values()
+          .stream()
+          .mapToLong(Long::longValue)
+          .average()
+          .orElse(0)
+      );
+      latency.put(
+        "max",
+        pageLatencies.values().stream().mapToLong(Long::longValue).max().orElse(0)
+      );
+      json.put("pageLatencyMillis", latency);
+      return json;
+    }
+  }
+}
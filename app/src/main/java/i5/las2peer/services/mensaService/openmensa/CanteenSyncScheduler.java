@@ -0,0 +1,156 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.minidev.json.JSONObject;
+
+/**
+ * Runs the canteen synchronization in the background. All runs happen on one thread,
+ * so there is never more than one synchronization writing to the mensas table.
+ * A failed run is retried after a shorter delay than the regular interval.
+ * After a run which changed the canteens, the snapshot of the canteens is rewritten
+ * and the listener for changed canteens is called. Every successful run is recorded with the snapshot.
+ */
+public class CanteenSyncScheduler {
+
+  private final CanteenSync sync;
+  private final CanteenSnapshot snapshot;
+  private final long intervalMillis;
+  private final long retryMillis;
+  private final Runnable onChange;
+
+  private ScheduledExecutorService scheduler;
+
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile JSONObject lastResult;
+  private volatile long lastRunAt = -1;
+  private volatile long nextRunAt = -1;
+
+  /**
+   * @param sync synchronization to run
+   * @param snapshot snapshot which is updated after a run, may be null
+   * @param intervalMillis time in ms between two successful runs
+   * @param retryMillis time in ms until a failed run is retried
+   * @param onChange called after a run which changed the canteens, may be null
+   */
+  public CanteenSyncScheduler(
+    CanteenSync sync,
+    CanteenSnapshot snapshot,
+    long intervalMillis,
+    long retryMillis,
+    Runnable onChange
+  ) {
+    this.sync = sync;
+    this.snapshot = snapshot;
+    this.intervalMillis = intervalMillis;
+    this.retryMillis = retryMillis;
+    this.onChange = onChange;
+  }
+
+  /**
+   * Starts the scheduler
+   * @param initialDelayMillis time in ms until the first run
+   */
+  public synchronized void start(long initialDelayMillis) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+        r -> {
+          Thread t = new Thread(r, "mensa-sync");
+          t.setDaemon(true);
+          return t;
+        }
+      );
+    schedule(initialDelayMillis);
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * @return the result of the last successful run and when the next run is due
+   */
+  public JSONObject getStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("runs", runs.get());
+    stats.put("failures", failures.get());
+    stats.put("lastRunAt", lastRunAt);
+    stats.put("nextRunAt", nextRunAt);
+    if (lastResult != null) {
+      stats.put("lastResult", lastResult);
+    }
+    return stats;
+  }
+
+  private synchronized void schedule(long delayMillis) {
+    if (scheduler == null) {
+      return;
+    }
+    nextRunAt = System.currentTimeMillis() + delayMillis;
+    scheduler.schedule(this::run, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void run() {
+    runs.incrementAndGet();
+    lastRunAt = System.currentTimeMillis();
+    System.out.println("Updating mensas...");
+    CanteenSync.Result result;
+    try {
+      result = sync.run();
+    } catch (IOException | SQLException | RuntimeException e) {
+      failures.incrementAndGet();
+      System.out.println("Could not update mensas: " + e.getMessage());
+      schedule(retryMillis);
+      return;
+    }
+    lastResult = result.toJSON();
+    System.out.println(
+      result.inserted() +
+      " mensas inserted, " +
+      result.updated() +
+      " updated, " +
+      result.removed() +
+      " removed, " +
+      result.pages() +
+      " pages processed in " +
+      result.durationMillis() +
+      "ms"
+    );
+    schedule(intervalMillis);
+
+    boolean changed =
+      result.inserted() + result.updated() + result.removed() > 0;
+    if (changed && onChange != null) {
+      try {
+        onChange.run();
+      } catch (RuntimeException e) {
+        System.out.println("Could not apply the changed mensas: " + e.getMessage());
+      }
+    }
+    if (snapshot != null && (changed || !snapshot.exists())) {
+      try {
+        System.out.println(snapshot.export() + " mensas written to snapshot");
+      } catch (IOException | SQLException e) {
+        System.out.println("Could not write mensa snapshot: " + e.getMessage());
+      }
+    }
+    if (snapshot != null) {
+      try {
+        snapshot.markSynced();
+      } catch (IOException e) {
+        System.out.println("Could not record mensa synchronization: " + e.getMessage());
+      }
+    }
+  }
+}
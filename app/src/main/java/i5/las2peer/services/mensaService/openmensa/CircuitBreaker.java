@@ -0,0 +1,99 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import java.util.concurrent.atomic.AtomicLong;
+import net.minidev.json.JSONObject;
+
+/**
+ * Stops sending requests to the OpenMensa API after a number of consecutive failures.
+ * While the circuit is open, requests are rejected immediately. After the open duration
+ * a single request is let through to probe whether the api has recovered.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN,
+  }
+
+  private final int failureThreshold;
+  private final long openMillis;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openedAt = 0;
+
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @param failureThreshold number of consecutive failures after which the circuit opens
+   * @param openMillis time in ms the circuit stays open before a probe request is allowed
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * @return true if a request may be sent. In the half open state only one probe request is allowed
+   */
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - openedAt >= openMillis) {
+          state = State.HALF_OPEN; // let this request probe the api
+          return true;
+        }
+        break;
+      case HALF_OPEN:
+        break; // the probe is still running
+    }
+    rejected.incrementAndGet();
+    return false;
+  }
+
+  public synchronized void recordSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+  }
+
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      if (state != State.OPEN) {
+        opened.incrementAndGet();
+      }
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized boolean isClosed() {
+    return state == State.CLOSED;
+  }
+
+  /**
+   * @return time in ms since epoch from which a probe request is allowed, 0 if the circuit is closed
+   */
+  public synchronized long getProbeAt() {
+    return state == State.CLOSED ? 0 : openedAt + openMillis;
+  }
+
+  /**
+   * @return state of the circuit and how often it opened and rejected requests
+   */
+  public JSONObject getStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("state", getState().toString());
+    stats.put("opened", opened.get());
+    stats.put("rejected", rejected.get());
+    return stats;
+  }
+}
@@ -0,0 +1,44 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * The menu of a canteen for one day as published by the OpenMensa API
+ * @param date day of the menu in "yyyy-MM-dd" format
+ * @param closed true if the canteen is closed on that day
+ * @param meals the meals served on that day, empty if the canteen is closed
+ * @param stale true if the menu could not be refreshed and might be outdated
+ */
+public record DayMenu(
+  String date,
+  boolean closed,
+  JSONArray meals,
+  boolean stale
+) {
+  /**
+   * Creates the menu for a day from the meals returned by the OpenMensa API.
+   * Some canteens do not mark the day as closed but publish a single meal named "geschlossen" or "closed" instead
+   * @param date day of the menu
+   * @param meals meals returned by /canteens/{id}/days/{date}/meals
+   * @return the menu, which is marked as closed if no actual meal is served
+   */
+  public static DayMenu fromMeals(String date, JSONArray meals) {
+    boolean closed = true;
+    for (Object object : meals) {
+      String dishname = ((JSONObject) object).getAsString("name");
+      if (!dishname.contains("geschlossen") && !dishname.contains("closed")) {
+        closed = false;
+        break;
+      }
+    }
+    return new DayMenu(date, closed, meals, false);
+  }
+
+  /**
+   * @return a copy of this menu which is marked as possibly outdated
+   */
+  public DayMenu asStale() {
+    return new DayMenu(date, closed, meals, true);
+  }
+}
@@ -0,0 +1,49 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Counts how often the menu of each canteen has been requested since the service was started.
+ * These are the same requests that are logged as SERVICE_CUSTOM_MESSAGE_1
+ */
+public class MensaPopularity {
+
+  private final ConcurrentHashMap<Integer, LongAdder> requests = new ConcurrentHashMap<>();
+
+  /**
+   * Records a menu request for a canteen
+   * @param mensaId id of the canteen
+   */
+  public void record(int mensaId) {
+    requests.computeIfAbsent(mensaId, id -> new LongAdder()).increment();
+  }
+
+  /**
+   * @param mensaId id of the canteen
+   * @return number of menu requests for the canteen
+   */
+  public long count(int mensaId) {
+    LongAdder count = requests.get(mensaId);
+    return count == null ? 0 : count.sum();
+  }
+
+  /**
+   * @param limit maximum number of canteens to return
+   * @return ids of the most requested canteens, most requested first
+   */
+  public List<Integer> top(int limit) {
+    return requests
+      .entrySet()
+      .stream()
+      .sorted(
+        (a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum())
+      )
+      .limit(limit)
+      .map(Map.Entry::getKey)
+      .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,8 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+/**
+ * Identifies the menu of a canteen on a given day
+ * @param mensaId id of the canteen in the OpenMensa API
+ * @param date day in "yyyy-MM-dd" format
+ */
+public record MenuKey(int mensaId, String date) {}
@@ -0,0 +1,196 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import i5.las2peer.services.mensaService.cache.InFlightRequests;
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import net.minidev.json.JSONObject;
+
+/**
+ * Periodically loads the menus of the most requested canteens for today and the following days,
+ * so that chat requests can be answered from the menu cache without waiting for the OpenMensa API.
+ * Only menus which are missing from the cache or would expire before the next round are loaded.
+ * Weekends and the hours outside the configured window are skipped, since the canteens are closed then.
+ */
+public class MenuPrefetcher {
+
+  private final MensaPopularity popularity;
+  private final InFlightRequests<MenuKey, DayMenu> inFlight;
+  private final MenuLoader loader;
+  private final ToLongFunction<MenuKey> freshMillis;
+  private final int days;
+  private final int topMensas;
+  private final int concurrency;
+  private final int fromHour;
+  private final int untilHour;
+
+  private volatile long intervalMillis;
+  private ScheduledExecutorService scheduler;
+  private ExecutorService workers;
+
+  private final AtomicLong rounds = new AtomicLong();
+  private final AtomicLong fetched = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong fresh = new AtomicLong();
+  private final AtomicLong idleRounds = new AtomicLong();
+  private volatile long lastRoundMillis = -1;
+
+  /**
+   * @param popularity request counts used to select the canteens
+   * @param inFlight registry shared with the service, so that a prefetch and a user request for the same menu are merged
+   * @param loader fetches a menu and stores it in the menu cache
+   * @param freshMillis time in ms a menu stays fresh in the menu cache, 0 if it is not cached
+   * @param days number of days after today to prefetch
+   * @param topMensas number of most requested canteens to prefetch
+   * @param concurrency maximum number of menus fetched at the same time
+   * @param fromHour hour of the day at which the first round may run
+   * @param untilHour hour of the day after which no round runs
+   */
+  public MenuPrefetcher(
+    MensaPopularity popularity,
+    InFlightRequests<MenuKey, DayMenu> inFlight,
+    MenuLoader loader,
+    ToLongFunction<MenuKey> freshMillis,
+    int days,
+    int topMensas,
+    int concurrency,
+    int fromHour,
+    int untilHour
+  ) {
+    this.popularity = popularity;
+    this.inFlight = inFlight;
+    this.loader = loader;
+    this.freshMillis = freshMillis;
+    this.days = days;
+    this.topMensas = topMensas;
+    this.concurrency = Math.max(1, concurrency);
+    this.fromHour = fromHour;
+    this.untilHour = untilHour;
+  }
+
+  /**
+   * Starts prefetching in the background
+   * @param intervalMinutes time between two prefetch rounds
+   */
+  public synchronized void start(long intervalMinutes) {
+    if (scheduler != null) {
+      return;
+    }
+    intervalMillis = TimeUnit.MINUTES.toMillis(intervalMinutes);
+    workers =
+      Executors.newFixedThreadPool(
+        concurrency,
+        r -> {
+          Thread t = new Thread(r, "mensa-prefetch-worker");
+          t.setDaemon(true);
+          return t;
+        }
+      );
+    scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+        r -> {
+          Thread t = new Thread(r, "mensa-prefetch");
+          t.setDaemon(true);
+          return t;
+        }
+      );
+    scheduler.scheduleWithFixedDelay(
+      this::prefetch,
+      0,
+      intervalMinutes,
+      TimeUnit.MINUTES
+    );
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      workers.shutdownNow();
+      scheduler = null;
+      workers = null;
+    }
+  }
+
+  /**
+   * Fetches the menus of the most requested canteens for today and the next days,
+   * unless they are still fresh at the next round.
+   * Blocks until all menus of this round have been fetched
+   */
+  void prefetch() {
+    int hour = LocalTime.now().getHour();
+    if (hour < fromHour || hour >= untilHour) {
+      idleRounds.incrementAndGet();
+      return;
+    }
+    long start = System.currentTimeMillis();
+    List<Callable<Void>> tasks = new ArrayList<>();
+    LocalDate today = LocalDate.now();
+
+    for (Integer mensaId : popularity.top(topMensas)) {
+      for (int i = 0; i <= days; i++) {
+        LocalDate day = today.plusDays(i);
+        if (
+          day.getDayOfWeek() == DayOfWeek.SATURDAY ||
+          day.getDayOfWeek() == DayOfWeek.SUNDAY
+        ) {
+          continue;
+        }
+        MenuKey key = new MenuKey(mensaId, day.toString());
+        if (freshMillis.applyAsLong(key) > intervalMillis) {
+          fresh.incrementAndGet(); // still cached when the next round runs
+          continue;
+        }
+        tasks.add(
+          () -> {
+            try {
+              inFlight.execute(key, () -> loader.load(key));
+              fetched.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+              failed.incrementAndGet(); // e.g. menu not published yet
+            }
+            return null;
+          }
+        );
+      }
+    }
+
+    try {
+      workers.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    rounds.incrementAndGet();
+    lastRoundMillis = System.currentTimeMillis() - start;
+  }
+
+  /**
+   * @return number of rounds, fetched, failed and still fresh menus as json
+   */
+  public JSONObject getStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("rounds", rounds.get());
+    stats.put("fetched", fetched.get());
+    stats.put("failed", failed.get());
+    stats.put("fresh", fresh.get());
+    stats.put("idleRounds", idleRounds.get());
+    stats.put("lastRoundMillis", lastRoundMillis);
+    return stats;
+  }
+
+  /** Fetches a menu and stores it in the menu cache */
+  @FunctionalInterface
+  public interface MenuLoader {
+    DayMenu load(MenuKey key) throws IOException;
+  }
+}
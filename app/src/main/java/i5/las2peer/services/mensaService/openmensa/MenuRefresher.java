@@ -0,0 +1,114 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import i5.las2peer.services.mensaService.cache.ExpiringCache;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.minidev.json.JSONObject;
+
+/**
+ * Serves the last known menus while the OpenMensa API is not available and refreshes them in the background.
+ * Refreshes are scheduled for the time at which the circuit breaker lets a probe request through,
+ * so that only the refresher probes whether the api has recovered and no user request waits for the probe.
+ * All refreshes run on one thread, one after another, so the first refresh probes and the others follow once the circuit is closed.
+ * A refresh which is rejected because the api is still unavailable is scheduled again, as long as the stale menu is kept.
+ */
+public class MenuRefresher {
+
+  private static final long MIN_DELAY_MILLIS = 1000; // while a probe is running
+
+  private final CircuitBreaker breaker;
+  private final ExpiringCache<MenuKey, DayMenu> staleMenus;
+  private final MenuPrefetcher.MenuLoader loader;
+  private final Set<MenuKey> pending = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+    r -> {
+      Thread t = new Thread(r, "mensa-menu-refresh");
+      t.setDaemon(true);
+      return t;
+    }
+  );
+
+  private final AtomicLong served = new AtomicLong();
+  private final AtomicLong refreshed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * @param breaker circuit breaker of the client which fetches the menus
+   * @param staleMenus last known menus
+   * @param loader fetches a menu and stores it in the menu caches
+   */
+  public MenuRefresher(
+    CircuitBreaker breaker,
+    ExpiringCache<MenuKey, DayMenu> staleMenus,
+    MenuPrefetcher.MenuLoader loader
+  ) {
+    this.breaker = breaker;
+    this.staleMenus = staleMenus;
+    this.loader = loader;
+  }
+
+  /**
+   * Looks up the last known menu and schedules a refresh for it
+   * @param key mensa and day of the menu
+   * @return the menu marked as stale, null if there is no last known menu
+   */
+  public DayMenu serveStale(MenuKey key) {
+    DayMenu dayMenu = staleMenus.get(key);
+    if (dayMenu == null) {
+      return null;
+    }
+    served.incrementAndGet();
+    if (pending.add(key)) { // at most one refresh per menu at a time
+      schedule(key);
+    }
+    return dayMenu;
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * @return number of stale menus served, refreshed and pending refreshes as json
+   */
+  public JSONObject getStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("served", served.get());
+    stats.put("refreshed", refreshed.get());
+    stats.put("failedRefreshes", failed.get());
+    stats.put("pendingRefreshes", pending.size());
+    return stats;
+  }
+
+  private void schedule(MenuKey key) {
+    long delay = 0;
+    long probeAt = breaker.getProbeAt();
+    if (probeAt > 0) {
+      delay = Math.max(MIN_DELAY_MILLIS, probeAt - System.currentTimeMillis());
+    }
+    scheduler.schedule(() -> refresh(key), delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void refresh(MenuKey key) {
+    try {
+      loader.load(key);
+      refreshed.incrementAndGet();
+    } catch (OpenMensaUnavailableException e) {
+      if (staleMenus.remainingMillis(key) > 0) {
+        schedule(key); // the circuit opened again or another request is probing
+        return;
+      }
+    } catch (IOException | RuntimeException e) {
+      failed.incrementAndGet();
+      System.out.println(
+        "Could not refresh menu of mensa " + key.mensaId() + ": " + e.getMessage()
+      );
+    }
+    pending.remove(key);
+  }
+}
@@ -0,0 +1,426 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import i5.las2peer.services.mensaService.cache.ExpiringCache;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
+import net.minidev.json.writer.JsonReaderI;
+
+/**
+ * Client for the OpenMensa API (https://doc.openmensa.org/api/v2).
+ * All requests share one HTTP client, so that connections to the api are kept alive and reused.
+ * Responses carrying an ETag or Last-Modified header are remembered and revalidated with conditional requests,
+ * so that an unchanged resource is answered with an empty 304 response.
+ * The read timeout covers the whole response including its body, which is parsed while it is received:
+ * a watchdog closes the body when the deadline passes, so a server which stops sending cannot block a request.
+ * Requests fail fast with an {@link OpenMensaUnavailableException} while the circuit breaker is open.
+ * The client does not depend on a las2peer context and can therefore also be used outside of a service request
+ */
+public class OpenMensaClient {
+
+  private final String endpoint;
+  private final Duration readTimeout;
+  private final HttpClient httpClient;
+  private final CircuitBreaker breaker;
+
+  private final ExpiringCache<String, Resource> validated = new ExpiringCache<>(
+    TimeUnit.DAYS.toMillis(7),
+    2000
+  ); // last response for each menu or day that can be revalidated
+  private final ExpiringCache<String, Resource> pageValidators; // validators of the canteen pages, without their canteens
+
+  private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+    r -> {
+      Thread t = new Thread(r, "openmensa-read-deadline");
+      t.setDaemon(true);
+      return t;
+    }
+  ); // closes bodies which are not complete before the read timeout
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong bytesSaved = new AtomicLong();
+
+  /**
+   * @param endpoint base url of the api e.g. https://openmensa.org/api/v2
+   * @param connectTimeout maximum time to establish a connection
+   * @param readTimeout maximum time to wait for a complete response
+   * @param breaker circuit breaker which stops requests while the api is not available
+   */
+  public OpenMensaClient(
+    String endpoint,
+    Duration connectTimeout,
+    Duration readTimeout,
+    CircuitBreaker breaker
+  ) {
+    this(endpoint, connectTimeout, readTimeout, breaker, Duration.ofDays(60));
+  }
+
+  /**
+   * @param endpoint base url of the api e.g. https://openmensa.org/api/v2
+   * @param connectTimeout maximum time to establish a connection
+   * @param readTimeout maximum time to wait for a complete response
+   * @param breaker circuit breaker which stops requests while the api is not available
+   * @param pageValidity time the validators of the canteen pages are kept, should be longer than the interval between two synchronizations
+   */
+  public OpenMensaClient(
+    String endpoint,
+    Duration connectTimeout,
+    Duration readTimeout,
+    CircuitBreaker breaker,
+    Duration pageValidity
+  ) {
+    this.endpoint = endpoint;
+    this.pageValidators = new ExpiringCache<>(pageValidity.toMillis(), 1000);
+    this.readTimeout = readTimeout;
+    this.breaker = breaker;
+    this.httpClient =
+      HttpClient
+        .newBuilder()
+        .version(HttpClient.Version.HTTP_2) // falls back to HTTP/1.1 if the server does not support HTTP/2
+        .connectTimeout(connectTimeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+  }
+
+  /**
+   * Fetches the menu of a canteen for one day with a single request.
+   * Whether the canteen is closed is derived from the returned meals
+   * @param mensaId id of the canteen in the OpenMensa API
+   * @param date day in "yyyy-MM-dd" format
+   * @return the menu of that day
+   * @throws IOException the menu has not been published
+   * @throws OpenMensaUnavailableException the api is not available at the moment
+   */
+  public DayMenu fetchDayMenu(int mensaId, String date) throws IOException {
+    Resource resource = get(
+      "/canteens/" + mensaId + "/days/" + date + "/meals",
+      JSONValue.defaultReader.DEFAULT,
+      true
+    );
+    try {
+      JSONArray meals = (JSONArray) resource.json();
+      return DayMenu.fromMeals(date, meals);
+    } catch (ClassCastException e) {
+      throw new IOException("Could not parse the menu of mensa " + mensaId, e);
+    }
+  }
+
+  /**
+   * Checks whether a canteen is open on a given day
+   * @param mensaId id of the canteen in the OpenMensa API
+   * @param date day in "yyyy-MM-dd" format
+   * @return false if the canteen is marked as closed on that day
+   * @throws IOException the day is unknown
+   * @throws OpenMensaUnavailableException the api is not available at the moment
+   */
+  public boolean isOpen(int mensaId, String date) throws IOException {
+    Resource resource = get(
+      "/canteens/" + mensaId + "/days/" + date,
+      JSONValue.defaultReader.DEFAULT,
+      true
+    );
+    try {
+      JSONObject day = (JSONObject) resource.json();
+      return !(Boolean) day.get("closed");
+    } catch (ClassCastException | NullPointerException e) {
+      throw new IOException("Could not parse the day of mensa " + mensaId, e);
+    }
+  }
+
+  /**
+   * Fetches one page of the list of all canteens. The page is parsed while it is received
+   * and each canteen is passed on as soon as it has been read, so the page is never held in memory as a whole.
+   * If the page has not been modified since it was last fetched, no canteens are passed on
+   * @param page number of the page, starting at 1
+   * @param consumer receives the canteens on the page
+   * @return the number of canteens on that page together with the total number of pages
+   * @throws IOException the page could not be fetched
+   * @throws OpenMensaUnavailableException the api is not available at the moment
+   */
+  public CanteenPage fetchCanteenPage(int page, Consumer<JSONObject> consumer)
+    throws IOException {
+    long start = System.currentTimeMillis();
+    Resource resource = get(
+      "/canteens?page=" + page,
+      new CanteenStreamReader(consumer),
+      false
+    );
+    try {
+      int totalPages = resource.totalPages() != null
+        ? Integer.parseInt(resource.totalPages())
+        : 1;
+      return new CanteenPage(
+        page,
+        totalPages,
+        resource.notModified() ? 0 : (Integer) resource.json(),
+        resource.notModified(),
+        System.currentTimeMillis() - start
+      );
+    } catch (ClassCastException | NumberFormatException e) {
+      throw new IOException("Could not parse canteen page " + page, e);
+    }
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  /**
+   * @return number of requests sent to the api, how many of them failed or were not modified and the bytes saved by revalidation
+   */
+  public JSONObject getStats() {
+    JSONObject stats = new JSONObject();
+    stats.put("requests", requests.get());
+    stats.put("failures", failures.get());
+    stats.put("notModified", notModified.get());
+    stats.put("bytesReceived", bytesReceived.get());
+    stats.put("bytesSaved", bytesSaved.get());
+    stats.put("validators", validated.size());
+    stats.put("pageValidators", pageValidators.size());
+    stats.put("circuitBreaker", breaker.getStats());
+    return stats;
+  }
+
+  /**
+   * Sends a GET request to the api. If the resource has been fetched before, the request is sent conditionally
+   * and the previous response is returned if the resource has not been modified
+   * @param path path relative to the endpoint
+   * @param reader reads the body of the response
+   * @param keepBody true if the parsed body is returned again when the resource has not been modified.
+   * Otherwise only the validators are kept, which are stored until the next synchronization of the canteens
+   * @return the parsed response, without body if the resource has not been modified and keepBody is false
+   * @throws OpenMensaUnavailableException the api could not be reached, failed with a server error or the circuit is open
+   * @throws IOException the api did not answer with 200 or 304
+   */
+  private Resource get(String path, JsonReaderI<?> reader, boolean keepBody)
+    throws IOException {
+    ExpiringCache<String, Resource> validators = keepBody
+      ? validated
+      : pageValidators;
+    if (!breaker.allowRequest()) {
+      throw new OpenMensaUnavailableException(
+        "The OpenMensa API is currently not available"
+      );
+    }
+    requests.incrementAndGet();
+    Resource previous = validators.get(path);
+    HttpRequest.Builder request = HttpRequest
+      .newBuilder(URI.create(endpoint + path))
+      .timeout(readTimeout)
+      .header("Accept", "application/json")
+      .header("Accept-Encoding", "gzip")
+      .GET();
+    if (previous != null && previous.etag() != null) {
+      request.header("If-None-Match", previous.etag());
+    }
+    if (previous != null && previous.lastModified() != null) {
+      request.header("If-Modified-Since", previous.lastModified());
+    }
+
+    long deadline = System.nanoTime() + readTimeout.toNanos();
+    HttpResponse<InputStream> response;
+    CompletableFuture<HttpResponse<InputStream>> pending = httpClient.sendAsync(
+      request.build(),
+      HttpResponse.BodyHandlers.ofInputStream()
+    );
+    try {
+      response = pending.get(readTimeout.toNanos(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      pending.cancel(true);
+      failed();
+      throw new OpenMensaUnavailableException(
+        "The OpenMensa API cannot be reached",
+        e
+      );
+    } catch (InterruptedException e) {
+      pending.cancel(true);
+      failed(); // ends a probe request, otherwise the circuit would stay half open
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Request to the OpenMensa API interrupted");
+    } catch (ExecutionException e) {
+      failed();
+      throw new OpenMensaUnavailableException(
+        "The OpenMensa API cannot be reached: " + e.getCause().getMessage(),
+        e.getCause()
+      );
+    }
+
+    if (response.statusCode() >= 500) {
+      response.body().close();
+      failed();
+      throw new OpenMensaUnavailableException(
+        "OpenMensa API answered with status " + response.statusCode()
+      );
+    }
+    breaker.recordSuccess(); // the api is available, even if the resource does not exist
+    if (response.statusCode() == 304 && previous != null) {
+      response.body().close();
+      notModified.incrementAndGet();
+      bytesSaved.addAndGet(previous.size());
+      return previous.asNotModified();
+    }
+    if (response.statusCode() != 200) {
+      response.body().close();
+      failures.incrementAndGet();
+      throw new IOException(
+        "OpenMensa API answered with status " +
+        response.statusCode() +
+        " for " +
+        path
+      );
+    }
+
+    // the timeout of the request only covers the headers, the body has to be complete by the same deadline
+    CountingInputStream body = new CountingInputStream(response.body());
+    AtomicBoolean timedOut = new AtomicBoolean();
+    ScheduledFuture<?> closer = watchdog.schedule(
+      () -> {
+        timedOut.set(true);
+        try {
+          body.close(); // wakes up the blocked read
+        } catch (IOException e) {
+          // the read fails anyway
+        }
+      },
+      deadline - System.nanoTime(),
+      TimeUnit.NANOSECONDS
+    );
+    Object json;
+    try {
+      json = parse(body, response.headers(), reader);
+    } catch (IOException e) {
+      if (timedOut.get()) {
+        failed();
+        throw new OpenMensaUnavailableException(
+          "The OpenMensa API did not complete the response in time",
+          e
+        );
+      }
+      failures.incrementAndGet();
+      throw e;
+    } finally {
+      closer.cancel(false);
+    }
+    bytesReceived.addAndGet(body.count);
+    Resource resource = new Resource(
+      json,
+      response.headers().firstValue("ETag").orElse(null),
+      response.headers().firstValue("Last-Modified").orElse(null),
+      response.headers().firstValue("x-total-pages").orElse(null),
+      body.count,
+      false
+    );
+    if (resource.etag() != null || resource.lastModified() != null) {
+      validators.put(path, keepBody ? resource : resource.withoutBody());
+    }
+    return resource;
+  }
+
+  /** Counts a failure which indicates that the api is not available */
+  private void failed() {
+    failures.incrementAndGet();
+    breaker.recordFailure();
+  }
+
+  /**
+   * Parses a json body, which might be gzip encoded. The body is read incrementally from the stream
+   */
+  private Object parse(
+    InputStream in,
+    HttpHeaders headers,
+    JsonReaderI<?> reader
+  )
+    throws IOException {
+    JSONParser jsonParser = new JSONParser(JSONParser.MODE_PERMISSIVE);
+    boolean gzip = headers
+      .firstValue("Content-Encoding")
+      .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+      .orElse(false);
+
+    try (InputStream body = gzip ? new GZIPInputStream(in) : in) {
+      return jsonParser.parse(body, reader);
+    } catch (ParseException e) {
+      throw new IOException("Could not parse the response of the OpenMensa API", e);
+    }
+  }
+
+  /**
+   * A parsed response together with its validators
+   * @param json the parsed body
+   * @param etag value of the ETag header
+   * @param lastModified value of the Last-Modified header
+   * @param totalPages value of the x-total-pages header
+   * @param size number of bytes of the body as received
+   * @param notModified true if this is the previous response, returned because the resource has not been modified
+   */
+  private record Resource(
+    Object json,
+    String etag,
+    String lastModified,
+    String totalPages,
+    long size,
+    boolean notModified
+  ) {
+    Resource asNotModified() {
+      return new Resource(json, etag, lastModified, totalPages, size, true);
+    }
+
+    Resource withoutBody() {
+      return new Resource(null, etag, lastModified, totalPages, size, notModified);
+    }
+  }
+
+  /** Counts the bytes read from the wrapped stream */
+  private static class CountingInputStream extends FilterInputStream {
+
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+  }
+}
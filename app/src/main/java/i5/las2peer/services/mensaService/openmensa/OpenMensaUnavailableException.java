@@ -0,0 +1,20 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import java.io.IOException;
+
+/**
+ * Thrown if the OpenMensa API could not be reached, did not answer in time or failed with a server error.
+ * Unlike other IOExceptions of the client, this does not mean that the requested resource does not exist
+ */
+public class OpenMensaUnavailableException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public OpenMensaUnavailableException(String message) {
+    super(message);
+  }
+
+  public OpenMensaUnavailableException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
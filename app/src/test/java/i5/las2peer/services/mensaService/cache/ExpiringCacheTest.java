@@ -0,0 +1,60 @@
+package i5.las2peer.services.mensaService.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the in-memory cache used for menus
+ */
+public class ExpiringCacheTest {
+
+  @Test
+  public void testHitAndMiss() {
+    ExpiringCache<String, String> cache = new ExpiringCache<>(60000, 10);
+
+    Assert.assertNull(cache.get("a"));
+    cache.put("a", "menu");
+    Assert.assertEquals("menu", cache.get("a"));
+
+    Assert.assertEquals(1L, cache.getStats().get("hits"));
+    Assert.assertEquals(1L, cache.getStats().get("misses"));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    ExpiringCache<String, String> cache = new ExpiringCache<>(60000, 2);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.get("a"); // a is now more recently used than b
+    cache.put("c", "3");
+
+    Assert.assertEquals(2, cache.size());
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals("1", cache.get("a"));
+    Assert.assertEquals(1L, cache.getStats().get("evictions"));
+  }
+
+  @Test
+  public void testExpiredEntriesAreNotReturned() throws InterruptedException {
+    ExpiringCache<String, String> cache = new ExpiringCache<>(20, 10);
+    cache.put("a", "1");
+    Thread.sleep(50);
+
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals(1L, cache.getStats().get("expirations"));
+  }
+
+  @Test
+  public void testReadingExtendsTimeToLive() throws InterruptedException {
+    ExpiringCache<String, String> cache = new ExpiringCache<>(100, 10, true);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    for (int i = 0; i < 3; i++) {
+      Thread.sleep(50);
+      Assert.assertEquals("1", cache.get("a")); // a is used, b is idle
+    }
+
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals(1L, cache.getStats().get("expirations"));
+  }
+}
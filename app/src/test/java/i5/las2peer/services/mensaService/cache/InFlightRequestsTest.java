@@ -0,0 +1,105 @@
+package i5.las2peer.services.mensaService.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that concurrent identical requests are merged
+ */
+public class InFlightRequestsTest {
+
+  @Test
+  public void testConcurrentCallsShareOneRequest() throws Exception {
+    InFlightRequests<String, String> requests = new InFlightRequests<>();
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    int callers = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(callers);
+
+    List<Future<String>> results = new ArrayList<>();
+    for (int i = 0; i < callers; i++) {
+      results.add(
+        pool.submit(
+          () ->
+            requests.execute(
+              "187/2020-11-30",
+              () -> {
+                loads.incrementAndGet();
+                try {
+                  release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                  throw new IOException(e);
+                }
+                return "menu";
+              }
+            )
+        )
+      );
+    }
+    // wait until all other callers wait for the running request before it finishes
+    while ((long) requests.getStats().get("merged") < callers - 1) {
+      Thread.sleep(5);
+    }
+    release.countDown();
+
+    for (Future<String> result : results) {
+      Assert.assertEquals("menu", result.get(5, TimeUnit.SECONDS));
+    }
+    pool.shutdown();
+
+    Assert.assertEquals(1, loads.get());
+    Assert.assertEquals((long) callers - 1, requests.getStats().get("merged"));
+  }
+
+  @Test
+  public void testErrorIsPassedToWaitingCallers() throws Exception {
+    InFlightRequests<String, String> requests = new InFlightRequests<>();
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+
+    List<Future<String>> results = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      results.add(
+        pool.submit(
+          () ->
+            requests.execute(
+              "187/2020-11-30",
+              () -> {
+                try {
+                  release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                  throw new IOException(e);
+                }
+                throw new StackOverflowError();
+              }
+            )
+        )
+      );
+    }
+    while ((long) requests.getStats().get("merged") < 1) {
+      Thread.sleep(5);
+    }
+    release.countDown();
+
+    for (Future<String> result : results) {
+      try {
+        result.get(5, TimeUnit.SECONDS);
+        Assert.fail("error expected");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof StackOverflowError);
+      }
+    }
+    pool.shutdown();
+    Assert.assertEquals(0, requests.getStats().get("inFlight"));
+  }
+}
@@ -0,0 +1,84 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the repositories on the embedded H2 database with the schema of initDB.sql
+ */
+public class EmbeddedDatabaseTest {
+
+	private SQLDatabase database;
+
+	@Before
+	public void createDatabase() throws IOException, SQLException {
+		database = new SQLDatabase(SQLDatabaseType.H2, "sa", "", "mem:" + System.nanoTime(), null, -1);
+		Assert.assertEquals(4, database.applySchema(Files.readString(schema())));
+		try (Connection con = database.getDataSource().getConnection(); Statement statement = con.createStatement()) {
+			statement.execute("INSERT INTO mensas VALUES (187, 'Mensa Academica', 'Aachen', 'Pontwall 3')");
+		}
+	}
+
+	@Test
+	public void testKeepsRatingStatsWithReviews() throws SQLException {
+		new DishRepository(database).saveAll(187, List.of(new Dish(1, "Pasta", "Vegetarisch")));
+		ReviewRepository reviews = new ReviewRepository(database);
+		int first = reviews.add("alice", 187, 1, 5, null);
+		reviews.add("bob", 187, 1, 2, "too salty");
+
+		RatingStats stats = reviews.ratingStats(List.of(1)).get(1);
+		Assert.assertEquals(2, stats.count());
+		Assert.assertEquals(3.5f, stats.average(), 0);
+		Assert.assertArrayEquals(new int[] { 0, 1, 0, 0, 1 }, stats.histogram());
+
+		reviews.delete(first);
+		Assert.assertEquals(2.0f, reviews.ratingStats(List.of(1)).get(1).average(), 0);
+		Assert.assertEquals(1, reviews.rebuildRatingStats());
+	}
+
+	@Test
+	public void testPagesAndStreamsDishes() throws SQLException {
+		DishRepository dishes = new DishRepository(database);
+		List<Dish> menu = new ArrayList<>();
+		for (int id = 1; id <= 5; id++) {
+			menu.add(new Dish(id, "Dish " + id, null));
+		}
+		dishes.saveAll(187, menu);
+
+		Assert.assertEquals(List.of(menu.get(2), menu.get(3)), dishes.findPage(2, 2));
+		List<Dish> streamed = new ArrayList<>();
+		Assert.assertEquals(5, dishes.stream(Integer.MIN_VALUE, streamed::add));
+		Assert.assertEquals(menu, streamed);
+	}
+
+	@Test
+	public void testMigratesRatingStats() throws IOException, SQLException {
+		new DishRepository(database).saveAll(187, List.of(new Dish(1, "Pasta", "Vegetarisch")));
+		ReviewRepository reviews = new ReviewRepository(database);
+		reviews.add("alice", 187, 1, 4, null);
+		try (Connection con = database.getDataSource().getConnection(); Statement statement = con.createStatement()) {
+			statement.execute("DROP TABLE dish_rating_stats"); // a database created before the table existed
+		}
+		Assert.assertFalse(database.hasTable("dish_rating_stats"));
+
+		database.applySchema(Files.readString(schema().resolveSibling("migrations/001-dish-rating-stats.sql")));
+		Assert.assertTrue(database.hasTable("dish_rating_stats"));
+		Assert.assertEquals(4.0f, reviews.ratingStats(List.of(1)).get(1).average(), 0);
+	}
+
+	/** The tests run in the app directory with gradle */
+	private static Path schema() {
+		Path schema = Paths.get("mysql-init-files", "initDB.sql");
+		return Files.exists(schema) ? schema : Paths.get("..").resolve(schema);
+	}
+}
@@ -0,0 +1,48 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the in-memory search index of the canteens
+ */
+public class MensaIndexTest {
+
+	private static final MensaIndex INDEX = MensaIndex.build(List.of(
+			new Mensa(187, "Mensa Academica", "Aachen", "Pontwall 3, 52062 Aachen"),
+			new Mensa(96, "Mensa Vita", "Aachen", "Helmertweg 1, 52074 Aachen"),
+			new Mensa(5, "Mensa Süd", "Köln", null),
+			new Mensa(42, "Cafeteria", null, "Am Markt 1")));
+
+	@Test
+	public void testFindsSubstringsLikeTheDatabase() {
+		Assert.assertEquals(List.of(96, 187), ids(INDEX.find("mensa", "aach")));
+		Assert.assertEquals(List.of(187), ids(INDEX.find(" ACADEM ", null)));
+		Assert.assertEquals(List.of(5), ids(INDEX.find("sud", "koln"))); // accents are ignored
+		Assert.assertEquals(List.of(5, 42, 96, 187), ids(INDEX.find(null, null)));
+		Assert.assertEquals(List.of(5, 96, 187), ids(INDEX.find(null, ""))); // canteens without city never match
+		Assert.assertEquals(List.of(96, 187), ids(INDEX.find("a", "a"))); // shorter than a trigram
+		Assert.assertTrue(INDEX.find("Mensa Academica Aachen", null).isEmpty());
+	}
+
+	@Test
+	public void testFindsByAddress() {
+		Assert.assertEquals(List.of(96, 187), ids(INDEX.find(Map.of(MensaIndex.Field.ADDRESS, "520"))));
+		Assert.assertEquals(List.of(42), ids(INDEX.find(Map.of(MensaIndex.Field.ADDRESS, "markt"))));
+	}
+
+	@Test
+	public void testContainsIds() {
+		Assert.assertTrue(INDEX.contains(5));
+		Assert.assertTrue(INDEX.contains(187));
+		Assert.assertFalse(INDEX.contains(6));
+		Assert.assertFalse(INDEX.contains(1000));
+		Assert.assertFalse(MensaIndex.build(List.of()).contains(5));
+	}
+
+	private static List<Integer> ids(List<Mensa> mensas) {
+		return mensas.stream().map(Mensa::id).toList();
+	}
+}
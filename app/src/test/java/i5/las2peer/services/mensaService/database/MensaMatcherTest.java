@@ -0,0 +1,51 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the ranking of canteens by name and popularity
+ */
+public class MensaMatcherTest {
+
+	private static final Mensa ACADEMICA = new Mensa(187, "Mensa Academica", "Aachen", null);
+	private static final Mensa VITA = new Mensa(96, "Mensa Vita", "Aachen", null);
+	private static final Mensa VITA_BISTRO = new Mensa(97, "Mensa Vita Bistro", "Aachen", null);
+	private static final List<Mensa> MENSAS = List.of(ACADEMICA, VITA, VITA_BISTRO);
+
+	private final MensaMatcher matcher = new MensaMatcher(id -> Map.of(187, 10L, 97, 1L).getOrDefault(id, 0L));
+
+	@Test
+	public void testSelectsClearWinner() {
+		List<MensaMatcher.Match> ranked = matcher.rank(MENSAS, "mensa vita");
+		Assert.assertEquals(VITA, ranked.get(0).mensa());
+		Assert.assertTrue(MensaMatcher.isClearWinner(ranked));
+
+		ranked = matcher.rank(MENSAS, "Mensa Acadmica"); // typo
+		Assert.assertEquals(ACADEMICA, ranked.get(0).mensa());
+		Assert.assertTrue(MensaMatcher.isClearWinner(ranked));
+
+		ranked = matcher.rank(MENSAS, "acadmica");
+		Assert.assertEquals(ACADEMICA, ranked.get(0).mensa());
+		Assert.assertTrue(MensaMatcher.isClearWinner(ranked));
+	}
+
+	@Test
+	public void testAsksWhenAmbiguous() {
+		List<MensaMatcher.Match> ranked = matcher.rank(MENSAS, "mensa");
+		Assert.assertEquals(ACADEMICA, ranked.get(0).mensa()); // most popular
+		Assert.assertFalse(MensaMatcher.isClearWinner(ranked));
+
+		ranked = matcher.rank(MENSAS, null);
+		Assert.assertEquals(List.of(ACADEMICA, VITA_BISTRO, VITA), ranked.stream().map(MensaMatcher.Match::mensa).toList());
+		Assert.assertFalse(MensaMatcher.isClearWinner(ranked));
+	}
+
+	@Test
+	public void testEditDistance() {
+		Assert.assertEquals(3, MensaMatcher.distance("kitten", "sitting"));
+		Assert.assertEquals(1.0, MensaMatcher.similarity("", ""), 0);
+	}
+}
@@ -0,0 +1,100 @@
+package i5.las2peer.services.mensaService.database;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for writing reviews behind the requests on the embedded H2 database
+ */
+public class ReviewWriterTest {
+
+	private SQLDatabase database;
+	private ReviewRepository reviews;
+	private Path overflow;
+
+	@Before
+	public void createDatabase() throws IOException, SQLException {
+		Path schema = Paths.get("mysql-init-files", "initDB.sql");
+		database = new SQLDatabase(SQLDatabaseType.H2, "sa", "", "mem:" + System.nanoTime(), null, -1);
+		database.applySchema(Files.readString(Files.exists(schema) ? schema : Paths.get("..").resolve(schema)));
+		try (Connection con = database.getDataSource().getConnection(); Statement statement = con.createStatement()) {
+			statement.execute("INSERT INTO mensas VALUES (187, 'Mensa Academica', 'Aachen', 'Pontwall 3')");
+		}
+		new DishRepository(database).saveAll(187, List.of(new Dish(1, "Pasta", "Vegetarisch")));
+		reviews = new ReviewRepository(database);
+		overflow = Files.createTempDirectory("reviews").resolve("overflow.jsonl");
+	}
+
+	@After
+	public void deleteOverflow() throws IOException {
+		Files.deleteIfExists(overflow);
+	}
+
+	@Test
+	public void testWritesReviewsInBackground() throws InterruptedException, SQLException {
+		ReviewWriter writer = new ReviewWriter(reviews, 10, 5, overflow);
+		writer.start();
+		Assert.assertTrue(writer.submit(review(1, 4)));
+		Assert.assertTrue(writer.submit(review(99, 3))); // unknown dish
+		Assert.assertTrue(writer.submit(review(1, 2)));
+		awaitWritten(writer, 2);
+		writer.stop();
+
+		Assert.assertEquals(2, reviews.findByDish(1).size());
+		Assert.assertEquals(3.0f, reviews.ratingStats(List.of(1)).get(1).average(), 0);
+		Assert.assertEquals(1L, writer.getStats().get("rejected"));
+	}
+
+	@Test
+	public void testKeepsOverflowUntilNextStart() throws InterruptedException, SQLException {
+		ReviewWriter writer = new ReviewWriter(reviews, 1, 5, overflow);
+		Assert.assertTrue(writer.submit(review(1, 5))); // queued
+		Assert.assertTrue(writer.submit(review(1, 1))); // queue is full
+		Assert.assertTrue(Files.exists(overflow));
+
+		writer.start();
+		awaitWritten(writer, 2);
+		writer.stop();
+		Assert.assertEquals(2, reviews.ratingStats(List.of(1)).get(1).count());
+		Assert.assertFalse(Files.exists(overflow));
+	}
+
+	@Test
+	public void testKeepsReplayFileOfFailedReplay() throws IOException, SQLException {
+		Path replaying = Paths.get(overflow + ".replaying");
+		Files.writeString(replaying, review(1, 5).toJSON().toJSONString() + "\n"); // left by a failed replay
+		ReviewWriter writer = new ReviewWriter(reviews, 10, 5, overflow);
+		Files.writeString(overflow,
+				review(1, 2).toJSON().toJSONString() + "\n" + review(99, 3).toJSON().toJSONString() + "\n");
+
+		writer.replayOverflow();
+		Assert.assertFalse(Files.exists(replaying));
+		Assert.assertTrue(Files.exists(overflow)); // replayed next time
+		writer.replayOverflow();
+		Assert.assertFalse(Files.exists(overflow));
+		Assert.assertEquals(2, reviews.ratingStats(List.of(1)).get(1).count());
+		Assert.assertEquals(7L, reviews.ratingStats(List.of(1)).get(1).sum());
+		Assert.assertEquals(2L, writer.getStats().get("replayed")); // the review of the unknown dish is not counted
+	}
+
+	private static ReviewWriter.PendingReview review(int dishId, int stars) {
+		return new ReviewWriter.PendingReview("alice", 187, dishId, stars, null, System.currentTimeMillis());
+	}
+
+	private static void awaitWritten(ReviewWriter writer, long reviews) throws InterruptedException {
+		for (int i = 0; i < 100 && (Long) writer.getStats().get("written") < reviews; i++) {
+			Thread.sleep(50);
+		}
+		Assert.assertEquals(reviews, writer.getStats().get("written"));
+	}
+}
@@ -0,0 +1,31 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the time of the last synchronization is recorded independently of the snapshot
+ */
+public class CanteenSnapshotTest {
+
+  @Test
+  public void testRecordsSynchronizationWithoutSnapshot() throws IOException {
+    Path dir = Files.createTempDirectory("snapshot");
+    CanteenSnapshot snapshot = new CanteenSnapshot(
+      dir.resolve("mensas-snapshot.json.gz"),
+      null
+    );
+    Assert.assertEquals(-1, snapshot.syncAgeMillis());
+
+    snapshot.markSynced(); // a synchronization which changed nothing writes no snapshot
+    long age = snapshot.syncAgeMillis();
+    Assert.assertFalse(snapshot.exists());
+    Assert.assertTrue(age >= 0 && age < 5000);
+
+    Files.delete(dir.resolve("mensas-snapshot.json.gz.synced"));
+    Files.delete(dir);
+  }
+}
@@ -0,0 +1,138 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import com.sun.net.httpserver.HttpServer;
+import i5.las2peer.services.mensaService.database.SQLDatabase;
+import i5.las2peer.services.mensaService.database.SQLDatabaseType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that canteens are only removed after every page of the canteen list has been read
+ */
+public class CanteenSyncTest {
+
+  private HttpServer server;
+  private volatile List<String> pages; // body of each page of /canteens
+  private CanteenSync sync;
+  private SQLDatabase database;
+
+  @Before
+  public void start() throws IOException, SQLException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+      "/api/v2/canteens",
+      exchange -> {
+        String query = exchange.getRequestURI().getQuery();
+        int page = Integer.parseInt(query.substring("page=".length()));
+        byte[] body = pages.get(page - 1).getBytes(StandardCharsets.UTF_8);
+        exchange
+          .getResponseHeaders()
+          .set("x-total-pages", String.valueOf(pages.size()));
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      }
+    );
+    server.start();
+
+    Path schema = Paths.get("mysql-init-files", "initDB.sql");
+    database =
+      new SQLDatabase(
+        SQLDatabaseType.H2,
+        "sa",
+        "",
+        "mem:" + System.nanoTime(),
+        null,
+        -1
+      );
+    database.applySchema(
+      Files.readString(
+        Files.exists(schema) ? schema : Paths.get("..").resolve(schema)
+      )
+    );
+    OpenMensaClient client = new OpenMensaClient(
+      "http://localhost:" + server.getAddress().getPort() + "/api/v2",
+      Duration.ofSeconds(2),
+      Duration.ofSeconds(2),
+      new CircuitBreaker(100, 60000)
+    );
+    sync = new CanteenSync(client, database, 2, 10);
+  }
+
+  @After
+  public void stop() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testKeepsCanteensWhenPageCannotBeRead()
+    throws IOException, SQLException {
+    pages = List.of(canteens(95, 96), canteens(97));
+    Assert.assertEquals(3, sync.run().inserted());
+
+    pages = List.of("[{\"name\":\"Mensa ohne Id\"}]", canteens(97));
+    try {
+      sync.run();
+      Assert.fail("the first page contains a canteen without id");
+    } catch (IOException e) {
+      // expected
+    }
+    Assert.assertEquals(3, countMensas());
+
+    pages = List.of(canteens(95), "[{\"id\":\"x\",\"name\":\"Mensa\"}]");
+    CanteenSync.Result result = sync.run();
+    Assert.assertEquals(1, result.failedPages());
+    Assert.assertEquals(0, result.removed());
+    Assert.assertEquals(3, countMensas());
+
+    pages = List.of(canteens(95), canteens(97));
+    Assert.assertEquals(1, sync.run().removed()); // 96 is no longer listed
+    Assert.assertEquals(2, countMensas());
+  }
+
+  private static String canteens(int... ids) {
+    StringBuilder json = new StringBuilder("[");
+    for (int id : ids) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+      json.append(
+        "{\"id\":" +
+        id +
+        ",\"name\":\"Mensa " +
+        id +
+        "\",\"city\":\"Aachen\",\"address\":\"Street " +
+        id +
+        "\"}"
+      );
+    }
+    return json.append(']').toString();
+  }
+
+  private int countMensas() throws SQLException {
+    try (
+      Connection con = database.getDataSource().getConnection();
+      Statement statement = con.createStatement();
+      ResultSet res = statement.executeQuery("SELECT COUNT(*) FROM mensas")
+    ) {
+      res.next();
+      return res.getInt(1);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the circuit breaker around the OpenMensa API
+ */
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+    breaker.recordFailure();
+    breaker.recordSuccess(); // resets the count
+    breaker.recordFailure();
+    Assert.assertTrue(breaker.allowRequest());
+
+    breaker.recordFailure();
+    Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    Assert.assertFalse(breaker.allowRequest());
+    Assert.assertEquals(1L, breaker.getStats().get("rejected"));
+  }
+
+  @Test
+  public void testAllowsSingleProbeAfterOpenDuration()
+    throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 20);
+    breaker.recordFailure();
+    Thread.sleep(50);
+
+    Assert.assertTrue(breaker.allowRequest());
+    Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    Assert.assertFalse(breaker.allowRequest()); // the probe is still running
+
+    breaker.recordSuccess();
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.allowRequest());
+  }
+}
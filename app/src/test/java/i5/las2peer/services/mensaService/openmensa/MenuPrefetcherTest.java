@@ -0,0 +1,50 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import i5.las2peer.services.mensaService.cache.ExpiringCache;
+import i5.las2peer.services.mensaService.cache.InFlightRequests;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.minidev.json.JSONArray;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the prefetcher only loads menus which are not fresh in the menu cache
+ */
+public class MenuPrefetcherTest {
+
+  @Test
+  public void testSkipsFreshMenus() throws InterruptedException {
+    MensaPopularity popularity = new MensaPopularity();
+    popularity.record(187);
+    popularity.record(96);
+    ExpiringCache<MenuKey, DayMenu> menuCache = new ExpiringCache<>(3600000, 100);
+    AtomicInteger loads = new AtomicInteger();
+    MenuPrefetcher prefetcher = new MenuPrefetcher(
+      popularity,
+      new InFlightRequests<>(),
+      key -> {
+        loads.incrementAndGet();
+        DayMenu menu = DayMenu.fromMeals(key.date(), new JSONArray());
+        menuCache.put(key, menu);
+        return menu;
+      },
+      menuCache::remainingMillis,
+      2,
+      10,
+      2,
+      0,
+      24
+    );
+    prefetcher.start(10);
+    while ((long) prefetcher.getStats().get("rounds") < 1) {
+      Thread.sleep(5);
+    }
+    int firstRound = loads.get();
+    Assert.assertTrue(firstRound > 0);
+
+    prefetcher.prefetch(); // everything is cached for longer than the interval
+    prefetcher.stop();
+    Assert.assertEquals(firstRound, loads.get());
+    Assert.assertEquals((long) firstRound, prefetcher.getStats().get("fresh"));
+  }
+}
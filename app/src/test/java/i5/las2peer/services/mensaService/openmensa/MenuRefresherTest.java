@@ -0,0 +1,70 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import i5.las2peer.services.mensaService.cache.ExpiringCache;
+import java.io.IOException;
+import java.time.Duration;
+import net.minidev.json.JSONArray;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that stale menus are served while the circuit is open and refreshed once it may close again
+ */
+public class MenuRefresherTest {
+
+  private OpenMensaStandIn standIn;
+
+  @After
+  public void stopStandIn() {
+    if (standIn != null) {
+      standIn.stop();
+    }
+  }
+
+  @Test
+  public void testServesStaleMenuAndRefreshesAfterOpenWindow()
+    throws IOException, InterruptedException {
+    standIn = new OpenMensaStandIn(OpenMensaStandIn.Profile.DEFAULT);
+    CircuitBreaker breaker = new CircuitBreaker(1, 300);
+    OpenMensaClient client = new OpenMensaClient(
+      standIn.start(0),
+      Duration.ofSeconds(2),
+      Duration.ofSeconds(2),
+      breaker
+    );
+    MenuKey key = new MenuKey(187, "2020-11-30");
+    ExpiringCache<MenuKey, DayMenu> staleMenus = new ExpiringCache<>(60000, 10);
+    staleMenus.put(key, DayMenu.fromMeals(key.date(), new JSONArray()).asStale());
+    MenuRefresher refresher = new MenuRefresher(
+      breaker,
+      staleMenus,
+      k -> {
+        DayMenu menu = client.fetchDayMenu(k.mensaId(), k.date());
+        staleMenus.put(k, menu.asStale());
+        return menu;
+      }
+    );
+    breaker.recordFailure(); // the api has just failed
+
+    DayMenu served = refresher.serveStale(key);
+    Assert.assertTrue(served.stale());
+    Assert.assertTrue(served.meals().isEmpty());
+    Thread.sleep(100);
+    Assert.assertEquals(0, standIn.getRequests()); // no refresh while the circuit is open
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (
+      (long) refresher.getStats().get("refreshed") < 1 &&
+      System.currentTimeMillis() < deadline
+    ) {
+      Thread.sleep(20);
+    }
+    refresher.stop();
+    Assert.assertEquals(1L, refresher.getStats().get("refreshed"));
+    Assert.assertEquals(1, standIn.getRequests()); // the refresh was the probe
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    Assert.assertEquals(5, staleMenus.get(key).meals().size());
+    Assert.assertEquals(0, refresher.getStats().get("pendingRefreshes"));
+  }
+}
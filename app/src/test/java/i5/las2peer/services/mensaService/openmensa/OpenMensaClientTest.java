@@ -0,0 +1,139 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import net.minidev.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the OpenMensa client against the local stand-in of the api
+ */
+public class OpenMensaClientTest {
+
+  private OpenMensaStandIn standIn;
+
+  private OpenMensaClient start(OpenMensaStandIn.Profile profile)
+    throws IOException {
+    standIn = new OpenMensaStandIn(profile);
+    return new OpenMensaClient(
+      standIn.start(0),
+      Duration.ofSeconds(2),
+      Duration.ofSeconds(2),
+      new CircuitBreaker(2, 60000)
+    );
+  }
+
+  @After
+  public void stopStandIn() {
+    if (standIn != null) {
+      standIn.stop();
+    }
+  }
+
+  @Test
+  public void testFetchesMenuAndOpenStatus() throws IOException {
+    OpenMensaClient client = start(OpenMensaStandIn.Profile.DEFAULT);
+
+    DayMenu monday = client.fetchDayMenu(187, "2020-11-30");
+    Assert.assertFalse(monday.closed());
+    Assert.assertEquals(5, monday.meals().size());
+    Assert.assertTrue(client.isOpen(187, "2020-11-30"));
+
+    Assert.assertTrue(client.fetchDayMenu(187, "2020-11-29").closed()); // sunday
+    Assert.assertFalse(client.isOpen(187, "2020-11-29"));
+  }
+
+  @Test
+  public void testRevalidatesUnchangedResources() throws IOException {
+    OpenMensaClient client = start(OpenMensaStandIn.Profile.DEFAULT);
+    client.fetchDayMenu(187, "2020-11-30");
+    client.fetchDayMenu(187, "2020-11-30");
+
+    Assert.assertEquals(1L, client.getStats().get("notModified"));
+  }
+
+  @Test
+  public void testStreamsAllCanteenPages() throws IOException {
+    OpenMensaClient client = start(new OpenMensaStandIn.Profile(0, 0, 2));
+    List<JSONObject> canteens = new ArrayList<>();
+    CanteenPage first = client.fetchCanteenPage(1, canteens::add);
+    for (int page = 2; page <= first.totalPages(); page++) {
+      client.fetchCanteenPage(page, canteens::add);
+    }
+
+    Assert.assertEquals(4, first.totalPages());
+    Assert.assertEquals(2, first.canteens());
+    Assert.assertEquals(standIn.getCanteenCount(), canteens.size());
+    Assert.assertEquals("Aachen", canteens.get(0).getAsString("city"));
+
+    CanteenPage again = client.fetchCanteenPage(1, canteens::add);
+    Assert.assertTrue(again.notModified());
+    Assert.assertEquals(4, again.totalPages());
+    Assert.assertEquals(standIn.getCanteenCount(), canteens.size()); // nothing passed on for an unchanged page
+    Assert.assertEquals(4, client.getStats().get("pageValidators"));
+    Assert.assertEquals(0, client.getStats().get("validators")); // pages do not compete with menus
+  }
+
+  @Test
+  public void testOpensCircuitWhenApiFails() throws IOException {
+    OpenMensaClient client = start(new OpenMensaStandIn.Profile(0, 1, 3));
+    for (int i = 0; i < 3; i++) {
+      try {
+        client.fetchDayMenu(187, "2020-11-30");
+        Assert.fail("The stand-in answers every request with 503");
+      } catch (OpenMensaUnavailableException e) {
+        // expected
+      }
+    }
+    Assert.assertEquals(2, standIn.getRequests()); // the third request is rejected by the open circuit
+  }
+
+  @Test
+  public void testTimesOutWhenBodyStalls() throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    CountDownLatch release = new CountDownLatch(1);
+    server.createContext(
+      "/api/v2",
+      exchange -> {
+        exchange.sendResponseHeaders(200, 100);
+        exchange.getResponseBody().write('[');
+        exchange.getResponseBody().flush();
+        try {
+          release.await(10, TimeUnit.SECONDS); // headers are sent, the body never completes
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.close();
+      }
+    );
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+    OpenMensaClient client = new OpenMensaClient(
+      "http://localhost:" + server.getAddress().getPort() + "/api/v2",
+      Duration.ofSeconds(2),
+      Duration.ofMillis(300),
+      breaker
+    );
+    long start = System.currentTimeMillis();
+    try {
+      client.fetchDayMenu(187, "2020-11-30");
+      Assert.fail("The body is never completed");
+    } catch (OpenMensaUnavailableException e) {
+      Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+      Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState()); // the stalled request counts as a failure
+    } finally {
+      release.countDown();
+      server.stop(0);
+    }
+  }
+}
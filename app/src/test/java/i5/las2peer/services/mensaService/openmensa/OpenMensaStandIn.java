@@ -0,0 +1,226 @@
+package i5.las2peer.services.mensaService.openmensa;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * Local stand-in for the OpenMensa API which serves the recorded fixtures in /openmensa.
+ * Supports /canteens, /canteens/{id}/days/{date} and /canteens/{id}/days/{date}/meals.
+ * Canteens are closed on weekends, every other day serves the same meals.
+ * Latency, error rate and page size are set by a {@link Profile}, so that tests and
+ * benchmarks do not depend on the live api.
+ *
+ * Can be started on its own for load tests: OpenMensaStandIn [port] [latencyMillis] [errorRate] [pageSize]
+ */
+public class OpenMensaStandIn {
+
+  private static final Pattern DAY = Pattern.compile(
+    "/canteens/(\\d+)/days/([0-9-]+)(/meals)?"
+  );
+
+  private final Profile profile;
+  private final JSONArray canteens;
+  private final JSONArray meals;
+  private final Random random = new Random(42); // reproducible errors
+  private final AtomicLong requests = new AtomicLong();
+  private HttpServer server;
+
+  /**
+   * Behaviour of the stand-in
+   * @param latencyMillis time in ms each response is delayed
+   * @param errorRate share of requests answered with 503, between 0 and 1
+   * @param pageSize number of canteens per page of /canteens
+   */
+  public record Profile(long latencyMillis, double errorRate, int pageSize) {
+    public static final Profile DEFAULT = new Profile(0, 0, 3);
+  }
+
+  public OpenMensaStandIn(Profile profile) throws IOException {
+    this.profile = profile;
+    this.canteens = (JSONArray) readFixture("canteens.json");
+    this.meals = (JSONArray) readFixture("meals.json");
+  }
+
+  /**
+   * Starts the server
+   * @param port port to listen on, 0 for any free port
+   * @return endpoint to use instead of https://openmensa.org/api/v2
+   */
+  public String start(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    server.createContext("/api/v2", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    return "http://localhost:" + server.getAddress().getPort() + "/api/v2";
+  }
+
+  public void stop() {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * @return number of requests received
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public int getCanteenCount() {
+    return canteens.size();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      if (profile.latencyMillis() > 0) {
+        Thread.sleep(profile.latencyMillis());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (nextFailure()) {
+      send(exchange, 503, "{\"error\":\"unavailable\"}");
+      return;
+    }
+
+    String path = exchange.getRequestURI().getPath().substring("/api/v2".length());
+    if ("/canteens".equals(path)) {
+      sendCanteenPage(exchange, page(exchange.getRequestURI().getQuery()));
+      return;
+    }
+    Matcher day = DAY.matcher(path);
+    if (!day.matches() || findCanteen(Integer.parseInt(day.group(1))) == null) {
+      send(exchange, 404, "{\"error\":\"not found\"}");
+      return;
+    }
+    boolean closed;
+    try {
+      DayOfWeek weekday = LocalDate.parse(day.group(2)).getDayOfWeek();
+      closed = weekday == DayOfWeek.SATURDAY || weekday == DayOfWeek.SUNDAY;
+    } catch (DateTimeParseException e) {
+      send(exchange, 404, "{\"error\":\"not found\"}");
+      return;
+    }
+    if (day.group(3) != null) {
+      send(exchange, 200, closed ? "[]" : meals.toJSONString());
+    } else {
+      JSONObject json = new JSONObject();
+      json.put("date", day.group(2));
+      json.put("closed", closed);
+      send(exchange, 200, json.toJSONString());
+    }
+  }
+
+  private void sendCanteenPage(HttpExchange exchange, int page)
+    throws IOException {
+    int pageSize = Math.max(1, profile.pageSize());
+    int totalPages = (canteens.size() + pageSize - 1) / pageSize;
+    JSONArray result = new JSONArray();
+    for (
+      int i = (page - 1) * pageSize;
+      i >= 0 && i < Math.min(page * pageSize, canteens.size());
+      i++
+    ) {
+      result.add(canteens.get(i));
+    }
+    exchange.getResponseHeaders().set("x-total-pages", String.valueOf(totalPages));
+    exchange.getResponseHeaders().set("x-current-page", String.valueOf(page));
+    exchange.getResponseHeaders().set("x-per-page", String.valueOf(pageSize));
+    send(exchange, 200, result.toJSONString());
+  }
+
+  private JSONObject findCanteen(int id) {
+    for (Object canteen : canteens) {
+      if (((JSONObject) canteen).getAsNumber("id").intValue() == id) {
+        return (JSONObject) canteen;
+      }
+    }
+    return null;
+  }
+
+  private synchronized boolean nextFailure() {
+    return profile.errorRate() > 0 && random.nextDouble() < profile.errorRate();
+  }
+
+  private static int page(String query) {
+    if (query != null) {
+      for (String param : query.split("&")) {
+        if (param.startsWith("page=")) {
+          try {
+            return Integer.parseInt(param.substring("page=".length()));
+          } catch (NumberFormatException e) {
+            break;
+          }
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Sends a json body. The ETag is derived from the body, so that conditional requests are answered with 304
+   */
+  private static void send(HttpExchange exchange, int status, String body)
+    throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    if (status == 200) {
+      exchange.getResponseHeaders().set("ETag", etag);
+      if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+    }
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static Object readFixture(String name) throws IOException {
+    try (
+      InputStream in = OpenMensaStandIn.class.getResourceAsStream(
+          "/openmensa/" + name
+        )
+    ) {
+      if (in == null) {
+        throw new IOException("Missing fixture " + name);
+      }
+      return new JSONParser(JSONParser.MODE_PERMISSIVE).parse(in);
+    } catch (ParseException e) {
+      throw new IOException("Could not parse fixture " + name, e);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+    Profile profile = new Profile(
+      args.length > 1 ? Long.parseLong(args[1]) : 0,
+      args.length > 2 ? Double.parseDouble(args[2]) : 0,
+      args.length > 3 ? Integer.parseInt(args[3]) : Profile.DEFAULT.pageSize()
+    );
+    String endpoint = new OpenMensaStandIn(profile).start(port);
+    System.out.println("OpenMensa stand-in listening on " + endpoint);
+  }
+}
@@ -28,6 +28,8 @@ export CREATE_DB_SQL='initDB.sql'
 [[ -z "${DATABASE_HOST}" ]] && export DATABASE_HOST='mysql'
 [[ -z "${DATABASE_PORT}" ]] && export DATABASE_PORT='3306'
 [[ -z "${DATABASE_NAME}" ]] && export DATABASE_PORT='LAS2PEERMON'
+[[ -z "${DATABASE_REPLICA_PORT}" ]] && export DATABASE_REPLICA_PORT='3306'
+[[ -z "${OPEN_MENSA_API_ENDPOINT}" ]] && export OPEN_MENSA_API_ENDPOINT='https://openmensa.org/api/v2'
 
 # set defaults for optional web connector parameters
 [[ -z "${START_HTTP}" ]] && export START_HTTP='TRUE'
@@ -49,6 +51,9 @@ set_in_service_config databasePort ${DATABASE_PORT}
 set_in_service_config databaseName ${DATABASE_NAME}
 set_in_service_config databaseUser ${DATABASE_USER}
 set_in_service_config databasePassword ${DATABASE_PASSWORD}
+set_in_service_config databaseReplicaHost ${DATABASE_REPLICA_HOST}
+set_in_service_config databaseReplicaPort ${DATABASE_REPLICA_PORT}
+set_in_service_config openMensaApiEndpoint ${OPEN_MENSA_API_ENDPOINT}
 
 
 # configure web connector properties
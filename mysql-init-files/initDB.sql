@@ -61,8 +61,25 @@ CREATE TABLE IF NOT EXISTS   `reviews`
         (255) CHARACTER
         SET utf8
         COLLATE utf8_general_ci ,
+    KEY `dishId` (`dishId`),
     FOREIGN KEY (`mensaId`) REFERENCES mensas(`id`),
     FOREIGN KEY (`dishId`) REFERENCES dishes(`id`)
 ) ENGINE = InnoDB AUTO_INCREMENT = 414 CHARACTER
 SET = utf8
 COLLATE = utf8_general_ci ROW_FORMAT = Dynamic;
+
+
+/*Initializes the table for the aggregated ratings of each dish, kept up to date together with the reviews*/
+CREATE TABLE IF NOT EXISTS `dish_rating_stats`
+(   `dishId` int (12) NOT NULL PRIMARY KEY,
+    `count` int (12) NOT NULL DEFAULT 0,
+    `sum` bigint NOT NULL DEFAULT 0,
+    `stars1` int (12) NOT NULL DEFAULT 0,
+    `stars2` int (12) NOT NULL DEFAULT 0,
+    `stars3` int (12) NOT NULL DEFAULT 0,
+    `stars4` int (12) NOT NULL DEFAULT 0,
+    `stars5` int (12) NOT NULL DEFAULT 0,
+    `lastReview` timestamp NULL
+) ENGINE = InnoDB CHARACTER
+SET = utf8
+COLLATE = utf8_general_ci ROW_FORMAT = Dynamic;
@@ -0,0 +1,26 @@
+-- Adds the aggregated ratings of each dish to a database created before dish_rating_stats was part of initDB.sql
+-- and computes them from the existing reviews. Can be run again to recompute the ratings:
+-- mysql -u root -p < mysql-init-files/migrations/001-dish-rating-stats.sql
+USE LAS2PEERMON;
+/*Initializes the table for the aggregated ratings of each dish, kept up to date together with the reviews*/
+CREATE TABLE IF NOT EXISTS `dish_rating_stats`
+(   `dishId` int (12) NOT NULL PRIMARY KEY,
+    `count` int (12) NOT NULL DEFAULT 0,
+    `sum` bigint NOT NULL DEFAULT 0,
+    `stars1` int (12) NOT NULL DEFAULT 0,
+    `stars2` int (12) NOT NULL DEFAULT 0,
+    `stars3` int (12) NOT NULL DEFAULT 0,
+    `stars4` int (12) NOT NULL DEFAULT 0,
+    `stars5` int (12) NOT NULL DEFAULT 0,
+    `lastReview` timestamp NULL
+) ENGINE = InnoDB CHARACTER
+SET = utf8
+COLLATE = utf8_general_ci ROW_FORMAT = Dynamic;
+
+DELETE FROM dish_rating_stats;
+INSERT INTO dish_rating_stats (dishId, count, sum, stars1, stars2, stars3, stars4, stars5, lastReview)
+SELECT dishId, COUNT(*), SUM(stars),
+    SUM(CASE WHEN stars=1 THEN 1 ELSE 0 END), SUM(CASE WHEN stars=2 THEN 1 ELSE 0 END),
+    SUM(CASE WHEN stars=3 THEN 1 ELSE 0 END), SUM(CASE WHEN stars=4 THEN 1 ELSE 0 END),
+    SUM(CASE WHEN stars=5 THEN 1 ELSE 0 END), MAX(timestamp)
+FROM reviews GROUP BY dishId;